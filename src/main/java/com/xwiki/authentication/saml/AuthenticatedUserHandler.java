@@ -21,6 +21,9 @@ package com.xwiki.authentication.saml;
 
 import com.xpn.xwiki.XWikiContext;
 import com.xpn.xwiki.user.api.XWikiUser;
+import com.xwiki.authentication.saml.xwiki.ResolvedPrincipalCache;
+import com.xwiki.authentication.saml.xwiki.ResolvedPrincipalCache.ResolvedPrincipal;
+import java.util.function.Function;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.xwiki.model.reference.DocumentReference;
@@ -29,20 +32,19 @@ import static com.xwiki.authentication.saml.samlauth.SamlAuthenticator.PROFILE_P
 
 public class AuthenticatedUserHandler {
     private static final Logger LOG = LoggerFactory.getLogger(AuthenticatedUserHandler.class);
-    private final XWikiContext context;
-    private final DocumentReferenceResolver<String> currentMixedDocumentReferenceResolver;
+    private final ResolvedPrincipalCache principalCache;
+    private final Function<String, DocumentReference> userReferenceResolver;
 
-    public AuthenticatedUserHandler(XWikiContext context, DocumentReferenceResolver<String> currentMixedDocumentReferenceResolver) {
-        this.context = context;
-        this.currentMixedDocumentReferenceResolver = currentMixedDocumentReferenceResolver;
+    public AuthenticatedUserHandler(DocumentReferenceResolver<String> currentMixedDocumentReferenceResolver,
+                                    ResolvedPrincipalCache principalCache) {
+        this.principalCache = principalCache;
+        this.userReferenceResolver = userName -> currentMixedDocumentReferenceResolver.resolve(userName, PROFILE_PARENT);
     }
 
-    public XWikiUser handle(String samlUserName) {
+    public XWikiUser handle(XWikiContext context, String samlUserName) {
         LOG.debug("User [{}] already logged in the session.", samlUserName);
-        return new XWikiUser(getUserReferenceForName(samlUserName), context.isMainWiki());
-    }
-
-    private DocumentReference getUserReferenceForName(String validUserName) {
-        return this.currentMixedDocumentReferenceResolver.resolve(validUserName, PROFILE_PARENT);
+        final ResolvedPrincipal principal = principalCache.resolve(samlUserName, context.getWikiId(),
+                context.isMainWiki(), userReferenceResolver);
+        return new XWikiUser(principal.userReference, principal.mainWiki);
     }
 }
@@ -0,0 +1,63 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.authentication.saml;
+
+import com.xpn.xwiki.XWikiContext;
+import com.xpn.xwiki.user.api.XWikiAuthService;
+import com.xwiki.authentication.saml.metrics.LoginMetrics;
+import java.util.Collections;
+import java.util.Map;
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Provider;
+import javax.inject.Singleton;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.script.service.ScriptService;
+import org.xwiki.security.authorization.ContextualAuthorizationManager;
+import org.xwiki.security.authorization.Right;
+
+// $services.samlLoginMetrics.metrics, only for administrators and empty when another authenticator is configured
+@Component
+@Named("samlLoginMetrics")
+@Singleton
+public class LoginMetricsScriptService implements ScriptService {
+    @Inject
+    private Provider<XWikiContext> contextProvider;
+
+    @Inject
+    private ContextualAuthorizationManager authorization;
+
+    public Map<String, Object> getMetrics() {
+        final LoginMetrics loginMetrics = getLoginMetrics();
+        return loginMetrics == null ? Collections.emptyMap() : loginMetrics.toMap();
+    }
+
+    public int getLoginsInFlight() {
+        final LoginMetrics loginMetrics = getLoginMetrics();
+        return loginMetrics == null ? 0 : loginMetrics.getLoginsInFlight();
+    }
+
+    private LoginMetrics getLoginMetrics() {
+        final XWikiAuthService authService = contextProvider.get().getWiki().getAuthService();
+        if (!(authService instanceof XWikiSAML20Authenticator) || !authorization.hasAccess(Right.ADMIN))
+            return null;
+        return ((XWikiSAML20Authenticator) authService).getLoginMetrics();
+    }
+}
@@ -11,32 +11,43 @@ import com.xpn.xwiki.web.XWikiRequest;
 import com.xpn.xwiki.web.XWikiResponse;
 import com.xwiki.authentication.saml.function.SupplierWithException;
 import com.xwiki.authentication.saml.onelogin.OneLoginAuth;
+import com.xwiki.authentication.saml.samlauth.AuthnRequestBuilder;
+import com.xwiki.authentication.saml.samlauth.RequestClassifier;
 import java.io.IOException;
-import java.util.List;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import static com.xpn.xwiki.XWikiException.ERROR_XWIKI_UNKNOWN;
 import static com.xpn.xwiki.XWikiException.MODULE_XWIKI;
-import static java.util.Arrays.asList;
 
 public class NonAuthenticatedAccessHandler {
 
     private static final Logger LOG = LoggerFactory.getLogger(NonAuthenticatedAccessHandler.class);
-    private static final List<String> allowedActions = asList("login", "skin", "ssx", "logout", "loginsubmit");
     private final XWikiContext context;
     private final OneLoginAuth loginAuthFactory;
     private final Saml2Settings samlSettings;
+    private final RequestClassifier requestClassifier;
+    private final AuthnRequestBuilder authnRequestBuilder;
 
-    public NonAuthenticatedAccessHandler(XWikiContext context, OneLoginAuth loginAuthFactory, Saml2Settings samlSettings) {
+    public NonAuthenticatedAccessHandler(XWikiContext context, OneLoginAuth loginAuthFactory, Saml2Settings samlSettings,
+                                         RequestClassifier requestClassifier, AuthnRequestBuilder authnRequestBuilder) {
         this.context = context;
         this.loginAuthFactory = loginAuthFactory;
         this.samlSettings = samlSettings;
+        this.requestClassifier = requestClassifier;
+        this.authnRequestBuilder = authnRequestBuilder;
     }
 
     public XWikiUser handle(SupplierWithException<XWikiUser,XWikiException> defaultAuthHandler)
             throws XWikiException {
-        if (isActionAllowedForAnonymousUsers())
-            return defaultAuthHandler.execute();
+        switch (requestClassifier.classify(context)) {
+            // anonymous requests only skip the IDP redirect, credentials they carry are still checked and XWiki
+            // serves them as guest when the default authentication returns no user
+            case ANONYMOUS:
+            case DEFAULT_AUTH:
+                return defaultAuthHandler.execute();
+            default:
+                break;
+        }
 
         if (isUsernamePresentInCookie())
             return defaultAuthHandler.execute();
@@ -44,10 +55,6 @@ public class NonAuthenticatedAccessHandler {
         return startSamlAuthentication();
     }
 
-    private boolean isActionAllowedForAnonymousUsers() {
-        return allowedActions.contains(context.getAction());
-    }
-
     private boolean isUsernamePresentInCookie() {
         return context.getRequest().getCookie("username") != null;
     }
@@ -55,11 +62,16 @@ public class NonAuthenticatedAccessHandler {
     private XWikiUser startSamlAuthentication() throws XWikiException {
         final XWikiRequest request = context.getRequest();
         final XWikiResponse response = context.getResponse();
-        final Auth auth;
+        final String returnUrl = XWiki.getRequestURL(request).toString();
         try {
-            auth = loginAuthFactory.produce(this.samlSettings, request, response);
+            if (authnRequestBuilder.isEnabled()) {
+                LOG.debug("SAML 2.0 Authentication redirection started");
+                response.sendRedirect(authnRequestBuilder.redirectUrl(returnUrl));
+                return null;
+            }
+            final Auth auth = loginAuthFactory.produce(this.samlSettings, request, response);
             LOG.debug("SAML 2.0 Authentication redirection started");
-            auth.login(XWiki.getRequestURL(request).toString());
+            auth.login(returnUrl);
         } catch (SettingsException | IOException e) {
             throw new XWikiException(MODULE_XWIKI, ERROR_XWIKI_UNKNOWN, e.getMessage(), e);
         }
@@ -24,24 +24,43 @@ import com.onelogin.saml2.settings.Saml2Settings;
 import com.xpn.xwiki.XWikiContext;
 import com.xpn.xwiki.XWikiException;
 import com.xpn.xwiki.user.api.XWikiUser;
+import com.xpn.xwiki.web.XWikiRequest;
+import com.xpn.xwiki.web.XWikiResponse;
+import com.xwiki.authentication.saml.metrics.LoginMetrics;
+import com.xwiki.authentication.saml.metrics.LoginPhase;
+import com.xwiki.authentication.saml.samlauth.AssertionReplayCache;
+import com.xwiki.authentication.saml.samlauth.LoginAdmissionControl;
 import com.xwiki.authentication.saml.samlauth.Saml2XWikiAttributes;
 import com.xwiki.authentication.saml.samlauth.SamlAuthConfig;
 import com.xwiki.authentication.saml.samlauth.SamlXwikiAttributesExtractor;
+import com.xwiki.authentication.saml.samlauth.SignedAuthCookie;
+import com.xwiki.authentication.saml.xwiki.AsyncGroupSynchronizer;
+import com.xwiki.authentication.saml.xwiki.GroupSyncPolicy;
+import com.xwiki.authentication.saml.xwiki.GroupSyncResult;
+import com.xwiki.authentication.saml.xwiki.LoginUnitOfWork;
 import com.xwiki.authentication.saml.xwiki.XWikiGroupManager;
 import com.xwiki.authentication.saml.xwiki.XWikiUserGroupSynchronizer;
 import com.xwiki.authentication.saml.xwiki.XWikiUserManager;
 import com.xwiki.authentication.saml.onelogin.OneLoginAuth;
 import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpSession;
+import org.apache.commons.lang3.StringUtils;
+import org.joda.time.Instant;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.xwiki.model.reference.DocumentReference;
-import org.xwiki.model.reference.DocumentReferenceResolver;
 import org.xwiki.model.reference.EntityReferenceSerializer;
 import static com.xpn.xwiki.XWikiException.ERROR_XWIKI_UNKNOWN;
 import static com.xpn.xwiki.XWikiException.MODULE_XWIKI_PLUGINS;
 
 public class SamlAuthenticationHandler {
     private static final Logger LOG = LoggerFactory.getLogger(SamlAuthenticationHandler.class);
+    private static final long DEFAULT_REPLAY_WINDOW_MILLIS = TimeUnit.MINUTES.toMillis(10);
 
     private final Saml2Settings samlSettings;
     private final SamlAuthConfig authConfig;
@@ -51,7 +70,11 @@ public class SamlAuthenticationHandler {
     private final XWikiContext context;
     private final XWikiUserManager xWikiUserManager;
     private final SamlXwikiAttributesExtractor attributesExtractor;
-
+    private final SignedAuthCookie authCookie;
+    private final AssertionReplayCache assertionReplayCache;
+    private final LoginAdmissionControl loginAdmissionControl;
+    private final AsyncGroupSynchronizer asyncGroupSynchronizer;
+    private final LoginMetrics loginMetrics;
 
     public SamlAuthenticationHandler(XWikiContext context,
                                      OneLoginAuth loginAuthFactory,
@@ -59,62 +82,218 @@ public class SamlAuthenticationHandler {
                                      SamlAuthConfig authConfig,
                                      XWikiGroupManager groupManager,
                                      EntityReferenceSerializer<String> compactStringEntityReferenceSerializer,
-                                     DocumentReferenceResolver<String> currentMixedDocumentReferenceResolver) {
+                                     XWikiUserManager xWikiUserManager,
+                                     SignedAuthCookie authCookie,
+                                     AssertionReplayCache assertionReplayCache,
+                                     LoginAdmissionControl loginAdmissionControl,
+                                     AsyncGroupSynchronizer asyncGroupSynchronizer,
+                                     LoginMetrics loginMetrics) {
         this.context = context;
         this.loginAuthFactory = loginAuthFactory;
         this.samlSettings = samlSettings;
         this.authConfig = authConfig;
         this.groupManager = groupManager;
         this.compactStringEntityReferenceSerializer = compactStringEntityReferenceSerializer;
-        this.xWikiUserManager = new XWikiUserManager(authConfig,
-                compactStringEntityReferenceSerializer,
-                currentMixedDocumentReferenceResolver);
+        this.xWikiUserManager = xWikiUserManager;
         this.attributesExtractor = new SamlXwikiAttributesExtractor(authConfig);
+        this.authCookie = authCookie;
+        this.assertionReplayCache = assertionReplayCache;
+        this.loginAdmissionControl = loginAdmissionControl;
+        this.asyncGroupSynchronizer = asyncGroupSynchronizer;
+        this.loginMetrics = loginMetrics;
     }
 
     public XWikiUser handle() throws XWikiException {
+        final long start = System.nanoTime();
+        final boolean admitted = loginAdmissionControl.tryAcquire();
+        loginMetrics.record(LoginPhase.ADMISSION_WAIT, start);
+        if (!admitted) {
+            loginMetrics.loginRejected();
+            return rejectLoginUntilLater();
+        }
+        loginMetrics.loginStarted();
+        try {
+            return processSamlResponse();
+        } finally {
+            loginAdmissionControl.release();
+            loginMetrics.loginFinished(start);
+        }
+    }
+
+    private XWikiUser processSamlResponse() throws XWikiException {
         try {
             final Auth auth = loginAuthFactory.produce(samlSettings, context.getRequest(), context.getResponse());
+            final long start = System.nanoTime();
             auth.processResponse();
+            loginMetrics.record(LoginPhase.PROCESS_RESPONSE, start);
 
             if (auth.isAuthenticated()) {
+                if (isReplayedAssertion(auth)) {
+                    LOG.info("SAML assertion [{}] was already processed, ignoring it", auth.getLastAssertionId());
+                    loginMetrics.assertionReplayed();
+                    redirectToOriginalRequestedUrl();
+                    return null;
+                }
                 final Saml2XWikiAttributes attributes = attributesExtractor.extractXWikiAttributesFromSaml(auth);
                 return setupAuthenticatedUser(attributes);
             }
 
             LOG.info(String.format("Saml authentication failed %s", auth.getLastErrorReason()), auth.getLastValidationException());
+            loginMetrics.loginFailed();
             return null;
         } catch (com.onelogin.saml2.exception.Error e) {
             LOG.error("Saml authentication failed due to configuration issues", e);
+            loginMetrics.loginFailed();
             throw new XWikiException(MODULE_XWIKI_PLUGINS, ERROR_XWIKI_UNKNOWN, e.getMessage(), e);
         } catch (Exception e) {
             LOG.error("Saml authentication failed due to unexpected exception", e);
+            loginMetrics.loginFailed();
             throw new XWikiException(MODULE_XWIKI_PLUGINS, ERROR_XWIKI_UNKNOWN, e.getMessage(), e);
         }
     }
 
+    // The page posts the same SAMLResponse again after Retry-After, so users don't have to go back to the IDP
+    private XWikiUser rejectLoginUntilLater() throws XWikiException {
+        final XWikiRequest request = context.getRequest();
+        final XWikiResponse response = context.getResponse();
+        final int retryAfter = authConfig.loginRetryAfterSeconds;
+        LOG.debug("Too many concurrent SAML logins, asking the client to retry in {} seconds", retryAfter);
+        try {
+            response.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+            response.setHeader("Retry-After", String.valueOf(retryAfter));
+            response.setContentType("text/html; charset=UTF-8");
+            response.getWriter().write("<!DOCTYPE html><html><head><title>Signing in</title></head><body>"
+                    + "<p>Too many users are signing in right now, retrying in " + retryAfter + " seconds.</p>"
+                    + "<form method=\"post\" action=\"" + escapeHtml(request.getRequestURL().toString()) + "\">"
+                    + hiddenField("SAMLResponse", request.getParameter("SAMLResponse"))
+                    + hiddenField("RelayState", request.getParameter("RelayState"))
+                    + "<noscript><button type=\"submit\">Retry</button></noscript></form>"
+                    + "<script>setTimeout(function () { document.forms[0].submit(); }, " + retryAfter * 1000 + ");</script>"
+                    + "</body></html>");
+        } catch (IOException e) {
+            throw new XWikiException(MODULE_XWIKI_PLUGINS, ERROR_XWIKI_UNKNOWN, e.getMessage(), e);
+        }
+        context.setFinished(true);
+        return null;
+    }
+
+    private static String hiddenField(String name, String value) {
+        if (value == null)
+            return "";
+        return "<input type=\"hidden\" name=\"" + name + "\" value=\"" + escapeHtml(value) + "\"/>";
+    }
+
+    private static String escapeHtml(String value) {
+        return value
+                .replace("&", "&amp;")
+                .replace("\"", "&quot;")
+                .replace("<", "&lt;")
+                .replace(">", "&gt;");
+    }
+
+    // browsers double-submitting the SAMLResponse must not run the user and group synchronization twice
+    private boolean isReplayedAssertion(Auth auth) {
+        final long now = System.currentTimeMillis();
+        return !assertionReplayCache.register(auth.getLastAssertionId(),
+                latestNotOnOrAfter(auth.getLastAssertionNotOnOrAfter(), now + DEFAULT_REPLAY_WINDOW_MILLIS));
+    }
+
+    private static long latestNotOnOrAfter(List<Instant> notOnOrAfter, long defaultValue) {
+        if (notOnOrAfter == null || notOnOrAfter.isEmpty())
+            return defaultValue;
+
+        long latest = Long.MIN_VALUE;
+        for (Instant instant : notOnOrAfter)
+            if (instant != null)
+                latest = Math.max(latest, instant.getMillis());
+        return latest == Long.MIN_VALUE ? defaultValue : latest;
+    }
+
      private XWikiUser setupAuthenticatedUser(Saml2XWikiAttributes attributes) throws IOException, XWikiException {
-        final DocumentReference userReference = xWikiUserManager.getOrCreateUserIfNeeded(context, attributes);
+        final LoginUnitOfWork unitOfWork = new LoginUnitOfWork(context);
+        final long userSyncStart = System.nanoTime();
+        final DocumentReference userReference = xWikiUserManager.getOrCreateUserIfNeeded(unitOfWork, attributes);
+        loginMetrics.record(LoginPhase.USER_SYNC, userSyncStart);
 
-        new XWikiUserGroupSynchronizer(groupManager, context).syncUserGroups(userReference, attributes);
+        // the background synchronization reads the user document again, it must see the updated fields
+        if (asyncGroupSynchronizer.isEnabled()) {
+            flush(unitOfWork);
+            asyncGroupSynchronizer.submit(userReference, attributes, context);
+        } else {
+            final long groupSyncStart = System.nanoTime();
+            syncUserGroups(userReference, attributes, unitOfWork);
+            loginMetrics.record(LoginPhase.GROUP_SYNC, groupSyncStart);
+            flush(unitOfWork);
+        }
+        LOG.debug("User [{}] documents: {}", userReference, unitOfWork);
 
-        addUserToTheSession(userReference);
+        if (authCookie.isEnabled())
+            issueAuthenticationCookie(userReference);
+        else
+            addUserToTheSession(userReference);
         redirectToOriginalRequestedUrl();
 
         LOG.info("User [{}] authentication complete", attributes.nameID);
         return new XWikiUser(userReference, context.isMainWiki());
      }
 
+    private void flush(LoginUnitOfWork unitOfWork) throws XWikiException {
+        final long start = System.nanoTime();
+        unitOfWork.flush();
+        loginMetrics.record(LoginPhase.USER_SAVE, start);
+    }
+
+    private void syncUserGroups(DocumentReference userReference, Saml2XWikiAttributes attributes,
+                                LoginUnitOfWork unitOfWork) throws XWikiException {
+        final GroupSyncResult groupSyncResult = new XWikiUserGroupSynchronizer(groupManager, context, GroupSyncPolicy.from(authConfig))
+                .syncUserGroups(userReference, attributes, unitOfWork);
+        LOG.debug("Groups of user [{}] synchronized: {}", userReference, groupSyncResult);
+    }
+
     private void addUserToTheSession(DocumentReference userReference) {
         LOG.debug("Setting authentication in session for user [{}]", userReference);
         context.getRequest().getSession().setAttribute(authConfig.authFieldName,
                 this.compactStringEntityReferenceSerializer.serialize(userReference));
     }
 
+    private void issueAuthenticationCookie(DocumentReference userReference) {
+        LOG.debug("Issuing signed authentication cookie for user [{}]", userReference);
+        authCookie.issue(context.getRequest(), context.getResponse(),
+                this.compactStringEntityReferenceSerializer.serialize(userReference));
+    }
+
     private void redirectToOriginalRequestedUrl() throws IOException {
-        final String originalSourceUrl = (String) context.getRequest().getSession().getAttribute(XWikiSAML20Authenticator.ORIGINAL_URL_SESSION_KEY);
+        final String originalSourceUrl = authCookie.isEnabled() ? getOriginalUrlWithoutSession() :
+                (String) context.getRequest().getSession().getAttribute(XWikiSAML20Authenticator.ORIGINAL_URL_SESSION_KEY);
         LOG.debug("Adding redirection header to [{}], since we got a successful authentication", originalSourceUrl);
         context.getResponse().sendRedirect(originalSourceUrl);
         context.setFinished(true);
     }
+
+    private String getOriginalUrlWithoutSession() {
+        final XWikiRequest request = context.getRequest();
+        final HttpSession session = request.getSession(false);
+        if (session != null && session.getAttribute(XWikiSAML20Authenticator.ORIGINAL_URL_SESSION_KEY) != null)
+            return (String) session.getAttribute(XWikiSAML20Authenticator.ORIGINAL_URL_SESSION_KEY);
+
+        // The redirection started by NonAuthenticatedAccessHandler carries the requested url as RelayState
+        final String relayState = request.getParameter("RelayState");
+        if (isLocalUrl(request, relayState))
+            return relayState;
+
+        return StringUtils.defaultIfEmpty(request.getContextPath(), "/");
+    }
+
+    private static boolean isLocalUrl(XWikiRequest request, String url) {
+        if (StringUtils.isBlank(url))
+            return false;
+        try {
+            final URI uri = new URI(url);
+            if (!uri.isAbsolute())
+                return url.startsWith("/") && !url.startsWith("//");
+            return request.getServerName().equalsIgnoreCase(uri.getHost());
+        } catch (URISyntaxException e) {
+            return false;
+        }
+    }
 }
@@ -26,9 +26,13 @@ import com.xpn.xwiki.user.api.XWikiUser;
 import com.xpn.xwiki.user.impl.xwiki.XWikiAuthServiceImpl;
 import com.xpn.xwiki.web.Utils;
 import com.xpn.xwiki.web.XWikiRequest;
+import com.xwiki.authentication.saml.metrics.LoginMetrics;
 import com.xwiki.authentication.saml.onelogin.OneLoginAuthImpl;
 import com.xwiki.authentication.saml.samlauth.SamlAuthConfig;
 import com.xwiki.authentication.saml.samlauth.SamlAuthenticator;
+import com.xwiki.authentication.saml.xwiki.GroupDocumentListener;
+import com.xwiki.authentication.saml.xwiki.SamlUserDocumentListener;
+import com.xwiki.authentication.saml.xwiki.ShutdownListener;
 import com.xwiki.authentication.saml.xwiki.XWikiGroupManager;
 import java.util.Optional;
 import org.slf4j.Logger;
@@ -39,6 +43,8 @@ import org.xwiki.model.ModelConfiguration;
 import org.xwiki.model.reference.DocumentReference;
 import org.xwiki.model.reference.DocumentReferenceResolver;
 import org.xwiki.model.reference.EntityReferenceSerializer;
+import org.xwiki.observation.EventListener;
+import org.xwiki.observation.ObservationManager;
 
 public class XWikiSAML20Authenticator extends XWikiAuthServiceImpl {
     public static final String ORIGINAL_URL_SESSION_KEY = "saml20_url";
@@ -58,16 +64,38 @@ public class XWikiSAML20Authenticator extends XWikiAuthServiceImpl {
     @SuppressWarnings("deprecation")
     private final ConfigurationSource configurationSource = Utils.getComponent(ConfigurationSource.class, "xwikicfg");
 
+    @SuppressWarnings("deprecation")
+    private final ObservationManager observationManager = Utils.getComponent(ObservationManager.class);
+
     private final SamlAuthenticator authenticator;
 
     public XWikiSAML20Authenticator() {
         SamlAuthConfig authConfig = SamlAuthConfig.from(configurationSource);
+        XWikiGroupManager groupManager = new XWikiGroupManager(currentMixedDocumentReferenceResolver,
+                authConfig.groupWriteIntervalMillis, authConfig.groupWriteBatchSize);
         authenticator = new SamlAuthenticator(
                 authConfig,
                 currentMixedDocumentReferenceResolver,
                 compactStringEntityReferenceSerializer,
                 new OneLoginAuthImpl(),
-                new XWikiGroupManager(currentMixedDocumentReferenceResolver));
+                groupManager);
+        registerListeners(groupManager);
+        authenticator.getLoginMetrics().registerMBeans();
+    }
+
+    private void registerListeners(XWikiGroupManager groupManager) {
+        registerListener(new SamlUserDocumentListener(authenticator.getUserReferenceCache()));
+        registerListener(new GroupDocumentListener(groupManager.getMembershipIndex()));
+        registerListener(new ShutdownListener(authenticator::shutdown));
+    }
+
+    private void registerListener(EventListener listener) {
+        observationManager.removeListener(listener.getName());
+        observationManager.addListener(listener);
+    }
+
+    public LoginMetrics getLoginMetrics() {
+        return authenticator.getLoginMetrics();
     }
 
     @Override
@@ -91,7 +119,7 @@ public class XWikiSAML20Authenticator extends XWikiAuthServiceImpl {
         throws XWikiException {
         LOG.debug("Invoked checkAuth(String username, String password, String rememberMe, XWikiContext context)");
         // We can't validate a password, so we either forward to the default authenticator or return the cached auth
-        final Optional<String> auth = authenticator.getSamlAuthenticatedUserFromSession(context);
+        final Optional<String> auth = authenticator.getSamlAuthenticatedUser(context);
 
         if (auth.isPresent())
             return checkAuth(context);
@@ -0,0 +1,44 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.authentication.saml.metrics;
+
+// Values owned by other login components, read from them each time the metrics are published
+public enum LoginGauge {
+    // assertion replay cache
+    TRACKED_ASSERTIONS("trackedAssertions"),
+    UNTRACKED_ASSERTIONS("untrackedAssertions"),
+    // login admission control
+    LOGIN_QUEUE_DEPTH("loginQueueDepth"),
+    MAX_LOGIN_QUEUE_DEPTH("maxLoginQueueDepth"),
+    AVAILABLE_LOGIN_PERMITS("availableLoginPermits"),
+    ADMITTED_LOGINS("admittedLogins"),
+    TOTAL_ADMISSION_WAIT_MILLIS("totalAdmissionWaitMillis"),
+    MAX_ADMISSION_WAIT_MILLIS("maxAdmissionWaitMillis"),
+    // user reference cache
+    USER_CACHE_SIZE("userCacheSize"),
+    USER_CACHE_HITS("userCacheHits"),
+    USER_CACHE_MISSES("userCacheMisses");
+
+    public final String metricName;
+
+    LoginGauge(String metricName) {
+        this.metricName = metricName;
+    }
+}
@@ -0,0 +1,234 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.authentication.saml.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+// Latency of each phase of checkAuth and of the SAMLResponse processing, published as MBeans
+public class LoginMetrics implements LoginMetricsMBean {
+    public static final String JMX_DOMAIN = "com.xwiki.authentication.saml";
+    private static final Logger LOG = LoggerFactory.getLogger(LoginMetrics.class);
+    private final Map<LoginPhase, LatencyHistogram> phases = new EnumMap<>(LoginPhase.class);
+    private final AtomicInteger loginsInFlight = new AtomicInteger();
+    private final LongAdder failedLogins = new LongAdder();
+    private final LongAdder rejectedLogins = new LongAdder();
+    private final LongAdder replayedAssertions = new LongAdder();
+    private final Map<LoginGauge, LongSupplier> gauges = new EnumMap<>(LoginGauge.class);
+
+    // group documents are saved by the group manager, also outside of logins, so it owns their histogram
+    public LoginMetrics(LatencyHistogram groupSaveLatency) {
+        for (LoginPhase phase : LoginPhase.values())
+            phases.put(phase, phase == LoginPhase.GROUP_SAVE ? groupSaveLatency : new LatencyHistogram());
+    }
+
+    // gauges are registered while the authenticator is built, before the metrics are published
+    public void registerGauge(LoginGauge gauge, LongSupplier value) {
+        gauges.put(gauge, value);
+    }
+
+    public long getGauge(LoginGauge gauge) {
+        final LongSupplier value = gauges.get(gauge);
+        return value == null ? 0 : value.getAsLong();
+    }
+
+    public void record(LoginPhase phase, long startNanos) {
+        phases.get(phase).recordSince(startNanos);
+    }
+
+    public LatencyHistogram getLatency(LoginPhase phase) {
+        return phases.get(phase);
+    }
+
+    public void loginStarted() {
+        loginsInFlight.incrementAndGet();
+    }
+
+    public void loginFinished(long startNanos) {
+        loginsInFlight.decrementAndGet();
+        record(LoginPhase.LOGIN, startNanos);
+    }
+
+    public void loginFailed() {
+        failedLogins.increment();
+    }
+
+    public void loginRejected() {
+        rejectedLogins.increment();
+    }
+
+    public void assertionReplayed() {
+        replayedAssertions.increment();
+    }
+
+    @Override
+    public int getLoginsInFlight() {
+        return loginsInFlight.get();
+    }
+
+    @Override
+    public long getLoginCount() {
+        return phases.get(LoginPhase.LOGIN).getCount();
+    }
+
+    @Override
+    public long getFailedLoginCount() {
+        return failedLogins.sum();
+    }
+
+    @Override
+    public long getRejectedLoginCount() {
+        return rejectedLogins.sum();
+    }
+
+    @Override
+    public long getReplayedAssertionCount() {
+        return replayedAssertions.sum();
+    }
+
+    @Override
+    public long getTrackedAssertionCount() {
+        return getGauge(LoginGauge.TRACKED_ASSERTIONS);
+    }
+
+    @Override
+    public long getUntrackedAssertionCount() {
+        return getGauge(LoginGauge.UNTRACKED_ASSERTIONS);
+    }
+
+    @Override
+    public long getLoginQueueDepth() {
+        return getGauge(LoginGauge.LOGIN_QUEUE_DEPTH);
+    }
+
+    @Override
+    public long getMaxLoginQueueDepth() {
+        return getGauge(LoginGauge.MAX_LOGIN_QUEUE_DEPTH);
+    }
+
+    @Override
+    public long getAvailableLoginPermits() {
+        return getGauge(LoginGauge.AVAILABLE_LOGIN_PERMITS);
+    }
+
+    @Override
+    public long getAdmittedLoginCount() {
+        return getGauge(LoginGauge.ADMITTED_LOGINS);
+    }
+
+    @Override
+    public long getTotalAdmissionWaitMillis() {
+        return getGauge(LoginGauge.TOTAL_ADMISSION_WAIT_MILLIS);
+    }
+
+    @Override
+    public long getMaxAdmissionWaitMillis() {
+        return getGauge(LoginGauge.MAX_ADMISSION_WAIT_MILLIS);
+    }
+
+    @Override
+    public long getUserCacheSize() {
+        return getGauge(LoginGauge.USER_CACHE_SIZE);
+    }
+
+    @Override
+    public long getUserCacheHitCount() {
+        return getGauge(LoginGauge.USER_CACHE_HITS);
+    }
+
+    @Override
+    public long getUserCacheMissCount() {
+        return getGauge(LoginGauge.USER_CACHE_MISSES);
+    }
+
+    public Map<String, Object> toMap() {
+        final Map<String, Object> metrics = new LinkedHashMap<>();
+        metrics.put("loginsInFlight", getLoginsInFlight());
+        metrics.put("logins", getLoginCount());
+        metrics.put("failedLogins", getFailedLoginCount());
+        metrics.put("rejectedLogins", getRejectedLoginCount());
+        metrics.put("replayedAssertions", getReplayedAssertionCount());
+        for (LoginGauge gauge : LoginGauge.values())
+            metrics.put(gauge.metricName, getGauge(gauge));
+        for (Map.Entry<LoginPhase, LatencyHistogram> phase : phases.entrySet())
+            metrics.put(phase.getKey().metricName, toMap(phase.getValue()));
+        return metrics;
+    }
+
+    private static Map<String, Object> toMap(LatencyHistogram latency) {
+        final Map<String, Object> values = new LinkedHashMap<>();
+        values.put("count", latency.getCount());
+        values.put("meanMillis", latency.getMeanMillis());
+        values.put("p50Millis", latency.getP50Millis());
+        values.put("p90Millis", latency.getP90Millis());
+        values.put("p99Millis", latency.getP99Millis());
+        values.put("p999Millis", latency.getP999Millis());
+        values.put("maxMillis", latency.getMaxMillis());
+        return values;
+    }
+
+    // a new authenticator instance takes over the names registered by a previous one
+    public void registerMBeans() {
+        final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            register(server, new ObjectName(JMX_DOMAIN + ":type=LoginMetrics"), this);
+            for (Map.Entry<LoginPhase, LatencyHistogram> phase : phases.entrySet())
+                register(server, phaseName(phase.getKey()), phase.getValue());
+        } catch (JMException e) {
+            LOG.warn("Failed to register the SAML login metrics MBeans", e);
+        }
+    }
+
+    private static void register(MBeanServer server, ObjectName name, Object mbean) throws JMException {
+        if (server.isRegistered(name))
+            server.unregisterMBean(name);
+        server.registerMBean(mbean, name);
+    }
+
+    public void unregisterMBeans() {
+        final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            unregister(server, new ObjectName(JMX_DOMAIN + ":type=LoginMetrics"));
+            for (LoginPhase phase : phases.keySet())
+                unregister(server, phaseName(phase));
+        } catch (JMException e) {
+            LOG.warn("Failed to unregister the SAML login metrics MBeans", e);
+        }
+    }
+
+    private static void unregister(MBeanServer server, ObjectName name) throws JMException {
+        if (server.isRegistered(name))
+            server.unregisterMBean(name);
+    }
+
+    private static ObjectName phaseName(LoginPhase phase) throws JMException {
+        return new ObjectName(JMX_DOMAIN + ":type=LoginMetrics,phase=" + phase.metricName);
+    }
+}
@@ -0,0 +1,42 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.authentication.saml.metrics;
+
+public enum LoginPhase {
+    // checkAuth branches
+    AUTHENTICATED("authenticated"),
+    ANONYMOUS("anonymous"),
+    LOGIN("login"),
+    // SAMLResponse processing
+    ADMISSION_WAIT("admissionWait"),
+    PROCESS_RESPONSE("processResponse"),
+    USER_SYNC("userSync"),
+    FIND_USER("findUser"),
+    CREATE_USER("createUser"),
+    GROUP_SYNC("groupSync"),
+    GROUP_SAVE("groupSave"),
+    USER_SAVE("userSave");
+
+    public final String metricName;
+
+    LoginPhase(String metricName) {
+        this.metricName = metricName;
+    }
+}
@@ -0,0 +1,162 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.authentication.saml.samlauth;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.LongSupplier;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+// Remembers processed assertion IDs until their NotOnOrAfter, so a SAMLResponse is only processed once.
+// Logins only contend on the bucket of their assertion: new deadlines are queued and moved into the expiry wheel
+// by whichever login first sees a new tick, the others don't wait for it.
+public class AssertionReplayCache {
+    private static final Logger LOG = LoggerFactory.getLogger(AssertionReplayCache.class);
+    private static final int BUCKETS = 32;
+    private static final long TICK_MILLIS = TimeUnit.SECONDS.toMillis(1);
+    private static final int WHEEL_SIZE = 64;
+    private static final int WHEEL_LEVELS = 3;
+
+    private final int maxEntries;
+    private final LongSupplier clock;
+    private final List<Map<String, Long>> buckets = new ArrayList<>(BUCKETS);
+    private final TimeWheel<String> expiryWheel;
+    private final ReentrantLock expiryLock = new ReentrantLock();
+    private final Queue<Deadline> pendingDeadlines = new ConcurrentLinkedQueue<>();
+    private volatile long expiredTick;
+    private final AtomicInteger size = new AtomicInteger();
+    private final LongAdder untrackedAssertions = new LongAdder();
+    private final AtomicBoolean fullWarningLogged = new AtomicBoolean();
+
+    public AssertionReplayCache(int maxEntries) {
+        this(maxEntries, System::currentTimeMillis);
+    }
+
+    AssertionReplayCache(int maxEntries, LongSupplier clock) {
+        this.maxEntries = maxEntries;
+        this.clock = clock;
+        for (int i = 0; i < BUCKETS; i++)
+            buckets.add(new HashMap<>());
+        this.expiryWheel = new TimeWheel<>(TICK_MILLIS, WHEEL_SIZE, WHEEL_LEVELS, clock.getAsLong());
+        this.expiredTick = clock.getAsLong() / TICK_MILLIS;
+    }
+
+    // returns false when the assertion was already registered and has not expired yet
+    public boolean register(String assertionId, long notOnOrAfter) {
+        if (maxEntries <= 0 || assertionId == null)
+            return true;
+
+        final long now = clock.getAsLong();
+        expireUntil(now);
+        if (notOnOrAfter <= now)
+            return true;
+
+        final Map<String, Long> bucket = bucketFor(assertionId);
+        synchronized (bucket) {
+            final Long registeredUntil = bucket.get(assertionId);
+            if (registeredUntil != null && registeredUntil > now)
+                return false;
+
+            if (registeredUntil == null && size.get() >= maxEntries) {
+                untracked(assertionId);
+                return true;
+            }
+            if (bucket.put(assertionId, notOnOrAfter) == null)
+                size.incrementAndGet();
+        }
+        pendingDeadlines.add(new Deadline(assertionId, notOnOrAfter));
+        return true;
+    }
+
+    // logged once each time the cache fills up, a login storm would otherwise log every assertion
+    private void untracked(String assertionId) {
+        untrackedAssertions.increment();
+        if (fullWarningLogged.compareAndSet(false, true))
+            LOG.warn("SAML assertion replay cache is full ({} entries), new assertions are not tracked until "
+                    + "registered ones expire", maxEntries);
+        LOG.debug("SAML assertion [{}] is not tracked", assertionId);
+    }
+
+    public int size() {
+        return size.get();
+    }
+
+    public long getUntrackedCount() {
+        return untrackedAssertions.sum();
+    }
+
+    // at most once per tick, by a single caller; the entries registered meanwhile are expired at the next tick
+    private void expireUntil(long now) {
+        final long tick = now / TICK_MILLIS;
+        if (tick <= expiredTick || !expiryLock.tryLock())
+            return;
+        try {
+            scheduleDeadlines(now);
+            expiryWheel.advanceTo(now, assertionId -> evict(assertionId, now));
+            expiredTick = tick;
+        } finally {
+            expiryLock.unlock();
+        }
+    }
+
+    private void scheduleDeadlines(long now) {
+        Deadline deadline;
+        while ((deadline = pendingDeadlines.poll()) != null)
+            if (!expiryWheel.schedule(deadline.assertionId, deadline.notOnOrAfter))
+                evict(deadline.assertionId, now);
+    }
+
+    private void evict(String assertionId, long now) {
+        final Map<String, Long> bucket = bucketFor(assertionId);
+        synchronized (bucket) {
+            final Long registeredUntil = bucket.get(assertionId);
+            if (registeredUntil != null && registeredUntil <= now) {
+                bucket.remove(assertionId);
+                if (size.decrementAndGet() < maxEntries)
+                    fullWarningLogged.set(false);
+            }
+        }
+    }
+
+    private Map<String, Long> bucketFor(String assertionId) {
+        final int hash = assertionId.hashCode();
+        return buckets.get((hash ^ (hash >>> 16)) & (BUCKETS - 1));
+    }
+
+    private static class Deadline {
+        private final String assertionId;
+        private final long notOnOrAfter;
+
+        Deadline(String assertionId, long notOnOrAfter) {
+            this.assertionId = assertionId;
+            this.notOnOrAfter = notOnOrAfter;
+        }
+    }
+}
@@ -0,0 +1,70 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.authentication.saml.samlauth;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+public class AttributeMapping {
+    private static final Logger LOG = LoggerFactory.getLogger(AttributeMapping.class);
+    private final Map<String, String> xwikiPropertyBySamlAttribute;
+
+    private AttributeMapping(Map<String, String> xwikiPropertyBySamlAttribute) {
+        this.xwikiPropertyBySamlAttribute = Collections.unmodifiableMap(xwikiPropertyBySamlAttribute);
+    }
+
+    public static AttributeMapping compile(String[] fieldMappings) {
+        final Map<String, String> xwikiPropertyBySamlAttribute = new HashMap<>();
+        for (String fieldMapping : fieldMappings) {
+            final String[] fieldAndValue = fieldMapping.split("=");
+            if (fieldAndValue.length != 2) {
+                LOG.error("Error parsing SAML fields_mapping attribute in xwiki.cfg: [{}]. Mapping ignored", fieldMapping);
+                continue;
+            }
+            final String xwikiPropertyName = fieldAndValue[0].trim();
+            final String samlAttributeName = fieldAndValue[1].trim();
+
+            xwikiPropertyBySamlAttribute.put(samlAttributeName, xwikiPropertyName);
+        }
+        return new AttributeMapping(xwikiPropertyBySamlAttribute);
+    }
+
+    public Map<String, String> toXWikiAttributes(Map<String, List<String>> samlAttributes) {
+        final Map<String, String> xwikiAttributes = new HashMap<>(capacityFor(xwikiPropertyBySamlAttribute.size()));
+        for (Map.Entry<String, List<String>> samlAttribute : samlAttributes.entrySet()) {
+            final String xwikiPropertyName = xwikiPropertyBySamlAttribute.get(samlAttribute.getKey());
+            if (xwikiPropertyName != null && samlAttribute.getValue() != null)
+                xwikiAttributes.put(xwikiPropertyName, joinValues(samlAttribute.getValue()));
+        }
+        return xwikiAttributes;
+    }
+
+    private static String joinValues(List<String> values) {
+        return values.size() == 1 ? String.valueOf(values.get(0)) : String.join(",", values);
+    }
+
+    private static int capacityFor(int expectedSize) {
+        return (int) (expectedSize / 0.75f) + 1;
+    }
+}
@@ -0,0 +1,161 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.authentication.saml.samlauth;
+
+import com.onelogin.saml2.settings.Saml2Settings;
+import java.io.ByteArrayOutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.Base64;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.function.Supplier;
+import java.util.zip.Deflater;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+// Builds the HTTP-Redirect binding URL of an unsigned AuthnRequest. Everything that only depends on the
+// settings is rendered once, each request only fills in the ID, the IssueInstant and the RelayState.
+public class AuthnRequestBuilder {
+    private static final Logger LOG = LoggerFactory.getLogger(AuthnRequestBuilder.class);
+    private static final int DEFLATER_POOL_SIZE = Runtime.getRuntime().availableProcessors() * 2;
+
+    private final boolean enabled;
+    private final String redirectUrlPrefix;
+    private final String xmlBeforeId;
+    private final String xmlBeforeIssueInstant;
+    private final String xmlAfterIssueInstant;
+    private final Supplier<String> idGenerator;
+    private final Supplier<Instant> clock;
+    private final BlockingQueue<Deflater> deflaters = new ArrayBlockingQueue<>(DEFLATER_POOL_SIZE);
+
+    AuthnRequestBuilder(Saml2Settings settings, Supplier<String> idGenerator, Supplier<Instant> clock) {
+        this.idGenerator = idGenerator;
+        this.clock = clock;
+        this.enabled = isSupported(settings);
+        if (!enabled) {
+            redirectUrlPrefix = xmlBeforeId = xmlBeforeIssueInstant = xmlAfterIssueInstant = null;
+            return;
+        }
+
+        final String destination = settings.getIdpSingleSignOnServiceUrl().toString();
+        this.redirectUrlPrefix = destination + (destination.contains("?") ? "&" : "?") + "SAMLRequest=";
+        this.xmlBeforeId = "<samlp:AuthnRequest xmlns:samlp=\"urn:oasis:names:tc:SAML:2.0:protocol\""
+                + " xmlns:saml=\"urn:oasis:names:tc:SAML:2.0:assertion\" ID=\"";
+        this.xmlBeforeIssueInstant = "\" Version=\"2.0\" IssueInstant=\"";
+        this.xmlAfterIssueInstant = "\" Destination=\"" + escapeXml(destination) + "\""
+                + " ProtocolBinding=\"" + escapeXml(settings.getSpAssertionConsumerServiceBinding()) + "\""
+                + " AssertionConsumerServiceURL=\"" + escapeXml(String.valueOf(settings.getSpAssertionConsumerServiceUrl())) + "\">"
+                + "<saml:Issuer>" + escapeXml(settings.getSpEntityId()) + "</saml:Issuer>"
+                + "<samlp:NameIDPolicy Format=\"" + escapeXml(settings.getSpNameIDFormat()) + "\" AllowCreate=\"true\" />"
+                + requestedAuthnContext(settings)
+                + "</samlp:AuthnRequest>";
+    }
+
+    public static AuthnRequestBuilder from(Saml2Settings settings) {
+        return new AuthnRequestBuilder(settings, () -> "ONELOGIN_" + UUID.randomUUID(), Instant::now);
+    }
+
+    // signed requests, settings without an IDP url and the options the template doesn't render are left to the
+    // OneLogin toolkit
+    private static boolean isSupported(Saml2Settings settings) {
+        if (settings.getAuthnRequestsSigned()) {
+            LOG.debug("AuthnRequests are signed, precomputed AuthnRequests disabled");
+            return false;
+        }
+        if (settings.getOrganization() != null || settings.getWantNameIdEncrypted()) {
+            LOG.debug("AuthnRequests carry a provider name or ask for an encrypted NameID, precomputed AuthnRequests disabled");
+            return false;
+        }
+        return settings.getIdpSingleSignOnServiceUrl() != null;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public String redirectUrl(String relayState) {
+        final String samlRequest = Base64.getEncoder().encodeToString(deflate(authnRequestXml()));
+        return redirectUrlPrefix + urlEncode(samlRequest) + "&RelayState=" + urlEncode(relayState);
+    }
+
+    byte[] authnRequestXml() {
+        final String id = idGenerator.get();
+        final String issueInstant = clock.get().truncatedTo(ChronoUnit.SECONDS).toString();
+        return new StringBuilder(xmlBeforeId.length() + xmlBeforeIssueInstant.length() + xmlAfterIssueInstant.length() + 64)
+                .append(xmlBeforeId).append(id)
+                .append(xmlBeforeIssueInstant).append(issueInstant)
+                .append(xmlAfterIssueInstant)
+                .toString()
+                .getBytes(StandardCharsets.UTF_8);
+    }
+
+    private byte[] deflate(byte[] xml) {
+        Deflater deflater = deflaters.poll();
+        if (deflater == null)
+            deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        try {
+            deflater.setInput(xml);
+            deflater.finish();
+            final ByteArrayOutputStream deflated = new ByteArrayOutputStream(xml.length);
+            final byte[] buffer = new byte[xml.length];
+            while (!deflater.finished())
+                deflated.write(buffer, 0, deflater.deflate(buffer));
+            return deflated.toByteArray();
+        } finally {
+            deflater.reset();
+            if (!deflaters.offer(deflater))
+                deflater.end();
+        }
+    }
+
+    private static String requestedAuthnContext(Saml2Settings settings) {
+        final List<String> authnContexts = settings.getRequestedAuthnContext();
+        if (authnContexts == null || authnContexts.isEmpty())
+            return "";
+
+        final StringBuilder xml = new StringBuilder("<samlp:RequestedAuthnContext Comparison=\"")
+                .append(escapeXml(settings.getRequestedAuthnContextComparison())).append("\">");
+        for (String authnContext : authnContexts)
+            xml.append("<saml:AuthnContextClassRef>").append(escapeXml(authnContext)).append("</saml:AuthnContextClassRef>");
+        return xml.append("</samlp:RequestedAuthnContext>").toString();
+    }
+
+    private static String escapeXml(String value) {
+        return value == null ? "" : value
+                .replace("&", "&amp;")
+                .replace("\"", "&quot;")
+                .replace("<", "&lt;")
+                .replace(">", "&gt;");
+    }
+
+    private static String urlEncode(String value) {
+        try {
+            return URLEncoder.encode(value, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
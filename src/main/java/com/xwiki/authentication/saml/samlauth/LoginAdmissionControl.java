@@ -0,0 +1,135 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.authentication.saml.samlauth;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Bounds how many SAMLResponses are processed at once; a limited number of logins may wait for a slot
+public class LoginAdmissionControl {
+    private final boolean enabled;
+    private final int maxQueueSize;
+    private final long queueTimeoutMillis;
+    private final Semaphore permits;
+    private final AtomicInteger queueDepth = new AtomicInteger();
+    private final AtomicInteger maxObservedQueueDepth = new AtomicInteger();
+    private final AtomicLong admitted = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong totalWaitNanos = new AtomicLong();
+    private final AtomicLong maxWaitNanos = new AtomicLong();
+
+    public LoginAdmissionControl(int maxConcurrentLogins, int maxQueueSize, long queueTimeoutMillis) {
+        this.enabled = maxConcurrentLogins > 0;
+        this.maxQueueSize = Math.max(0, maxQueueSize);
+        this.queueTimeoutMillis = queueTimeoutMillis;
+        this.permits = new Semaphore(Math.max(1, maxConcurrentLogins), true);
+    }
+
+    public static LoginAdmissionControl from(SamlAuthConfig authConfig) {
+        return new LoginAdmissionControl(authConfig.loginMaxConcurrent, authConfig.loginQueueSize,
+                authConfig.loginQueueTimeoutMillis);
+    }
+
+    // every successful tryAcquire must be followed by a release
+    public boolean tryAcquire() {
+        if (!enabled)
+            return true;
+        // unlike tryAcquire(), a zero timeout honors the fairness and doesn't overtake the logins already waiting
+        try {
+            if (permits.tryAcquire(0, TimeUnit.MILLISECONDS))
+                return admit(0);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            rejected.incrementAndGet();
+            return false;
+        }
+
+        final int depth = queueDepth.incrementAndGet();
+        if (depth > maxQueueSize) {
+            queueDepth.decrementAndGet();
+            rejected.incrementAndGet();
+            return false;
+        }
+        maxObservedQueueDepth.accumulateAndGet(depth, Math::max);
+
+        final long waitStart = System.nanoTime();
+        try {
+            if (permits.tryAcquire(queueTimeoutMillis, TimeUnit.MILLISECONDS))
+                return admit(System.nanoTime() - waitStart);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            queueDepth.decrementAndGet();
+        }
+        recordWait(System.nanoTime() - waitStart);
+        rejected.incrementAndGet();
+        return false;
+    }
+
+    public void release() {
+        if (enabled)
+            permits.release();
+    }
+
+    private boolean admit(long waitNanos) {
+        recordWait(waitNanos);
+        admitted.incrementAndGet();
+        return true;
+    }
+
+    private void recordWait(long waitNanos) {
+        totalWaitNanos.addAndGet(waitNanos);
+        maxWaitNanos.accumulateAndGet(waitNanos, Math::max);
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public int getQueueDepth() {
+        return queueDepth.get();
+    }
+
+    public int getMaxObservedQueueDepth() {
+        return maxObservedQueueDepth.get();
+    }
+
+    public int getAvailablePermits() {
+        return permits.availablePermits();
+    }
+
+    public long getAdmittedCount() {
+        return admitted.get();
+    }
+
+    public long getRejectedCount() {
+        return rejected.get();
+    }
+
+    public long getTotalWaitMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(totalWaitNanos.get());
+    }
+
+    public long getMaxWaitMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(maxWaitNanos.get());
+    }
+}
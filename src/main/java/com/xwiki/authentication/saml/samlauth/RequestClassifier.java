@@ -0,0 +1,149 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.authentication.saml.samlauth;
+
+import com.xpn.xwiki.XWikiContext;
+import com.xpn.xwiki.web.XWikiRequest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Predicate;
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import static java.util.Arrays.asList;
+
+public class RequestClassifier {
+    public enum Decision { ANONYMOUS, DEFAULT_AUTH, SAML }
+
+    private static final Logger LOG = LoggerFactory.getLogger(RequestClassifier.class);
+    private static final List<String> DEFAULT_AUTH_ACTIONS = asList("login", "skin", "ssx", "logout", "loginsubmit");
+    private static final String RULE_SEPARATOR = "->";
+    private final Map<String, Decision> decisionByAction;
+    private final List<Rule> rules;
+
+    private RequestClassifier(Map<String, Decision> decisionByAction, List<Rule> rules) {
+        this.decisionByAction = Collections.unmodifiableMap(decisionByAction);
+        this.rules = Collections.unmodifiableList(rules);
+    }
+
+    // rules look like "path:/rest/->default,header:X-Requested-With=XMLHttpRequest->anonymous,ua:bot->anonymous"
+    public static RequestClassifier compile(String[] ruleDefinitions) {
+        final Map<String, Decision> decisionByAction = new HashMap<>();
+        DEFAULT_AUTH_ACTIONS.forEach(action -> decisionByAction.put(action, Decision.DEFAULT_AUTH));
+        final List<Rule> rules = new ArrayList<>();
+
+        for (String ruleDefinition : ruleDefinitions) {
+            if (StringUtils.isBlank(ruleDefinition))
+                continue;
+            try {
+                compileRule(ruleDefinition.trim(), decisionByAction, rules);
+            } catch (IllegalArgumentException e) {
+                LOG.error("Error parsing SAML request_rules attribute in xwiki.cfg: [{}]. Rule ignored", ruleDefinition);
+            }
+        }
+        return new RequestClassifier(decisionByAction, rules);
+    }
+
+    private static void compileRule(String ruleDefinition, Map<String, Decision> decisionByAction, List<Rule> rules) {
+        final int separator = ruleDefinition.lastIndexOf(RULE_SEPARATOR);
+        final int typeEnd = ruleDefinition.indexOf(':');
+        if (separator < 0 || typeEnd < 0 || typeEnd > separator)
+            throw new IllegalArgumentException(ruleDefinition);
+
+        final String type = ruleDefinition.substring(0, typeEnd).trim();
+        final String value = ruleDefinition.substring(typeEnd + 1, separator).trim();
+        final Decision decision = decisionFor(ruleDefinition.substring(separator + RULE_SEPARATOR.length()).trim());
+        if (value.isEmpty())
+            throw new IllegalArgumentException(ruleDefinition);
+
+        switch (type) {
+            case "action":
+                decisionByAction.put(value, decision);
+                break;
+            case "path":
+                rules.add(new Rule(request -> pathStartsWith(request, value), decision));
+                break;
+            case "header":
+                rules.add(new Rule(headerMatcher(value), decision));
+                break;
+            case "ua":
+                rules.add(new Rule(request -> StringUtils.containsIgnoreCase(request.getHeader("User-Agent"), value), decision));
+                break;
+            default:
+                throw new IllegalArgumentException(ruleDefinition);
+        }
+    }
+
+    private static Decision decisionFor(String name) {
+        switch (name) {
+            case "anonymous": return Decision.ANONYMOUS;
+            case "default": return Decision.DEFAULT_AUTH;
+            case "saml": return Decision.SAML;
+            default: throw new IllegalArgumentException(name);
+        }
+    }
+
+    private static Predicate<XWikiRequest> headerMatcher(String headerRule) {
+        final int equals = headerRule.indexOf('=');
+        if (equals < 0)
+            return request -> request.getHeader(headerRule) != null;
+
+        final String headerName = headerRule.substring(0, equals).trim();
+        final String headerValue = headerRule.substring(equals + 1).trim();
+        return request -> headerValue.equalsIgnoreCase(request.getHeader(headerName));
+    }
+
+    // compares the path inside the webapp, so rules don't depend on the context path XWiki is deployed at
+    private static boolean pathStartsWith(XWikiRequest request, String prefix) {
+        final String uri = request.getRequestURI();
+        if (uri == null)
+            return false;
+        final String contextPath = request.getContextPath();
+        final int offset = contextPath != null && uri.startsWith(contextPath) ? contextPath.length() : 0;
+        return uri.startsWith(prefix, offset);
+    }
+
+    public Decision classify(XWikiContext context) {
+        final Decision actionDecision = context.getAction() == null ? null : decisionByAction.get(context.getAction());
+        if (actionDecision != null)
+            return actionDecision;
+
+        final XWikiRequest request = context.getRequest();
+        for (Rule rule : rules) {
+            if (rule.matcher.test(request))
+                return rule.decision;
+        }
+        return Decision.SAML;
+    }
+
+    private static class Rule {
+        private final Predicate<XWikiRequest> matcher;
+        private final Decision decision;
+
+        Rule(Predicate<XWikiRequest> matcher, Decision decision) {
+            this.matcher = matcher;
+            this.decision = decision;
+        }
+    }
+}
@@ -1,5 +1,6 @@
 package com.xwiki.authentication.saml.samlauth;
 
+import java.util.Collections;
 import java.util.Map;
 import java.util.Set;
 
@@ -11,6 +12,6 @@ public class Saml2XWikiAttributes {
     Saml2XWikiAttributes(String nameID, Map<String, String> xwikiAttributes, Set<String> groupsFromSaml) {
         this.nameID = nameID;
         this.xwikiAttributes = xwikiAttributes;
-        this.groupsFromSaml = groupsFromSaml;
+        this.groupsFromSaml = Collections.unmodifiableSet(groupsFromSaml);
     }
 }
@@ -26,10 +26,23 @@ public class SamlAuthConfig {
     private static final String DEFAULT_FIELDS_MAPPING = "email=email,first_name=firstName,last_name=lastName";
     private static final String DEFAULT_XWIKI_USERNAME_RULE = "first_name,last_name";
     private static final String DEFAULT_XWIKI_USERNAME_RULE_CAPITALIZE = "true";
+    private static final int DEFAULT_USER_CACHE_SIZE = 10000;
+    private static final int DEFAULT_USER_CACHE_TTL_SECONDS = 600;
 
     private final static String PROPERTY_PREFIX = "xwiki.authentication.saml2.";
     private static final String DEFAULT_NAMEID_FORMAT = "urn:oasis:names:tc:SAML:1.1:nameid-format:emailAddress";
     public static final String DEFAULT_GROUP_FOR_NEW_USERS = "XWiki.SamlUsers";
+    private static final String DEFAULT_GROUPS_ATTRIBUTE = "XWikiGroups";
+    private static final String DEFAULT_AUTH_COOKIE_NAME = "saml_auth";
+    private static final int DEFAULT_AUTH_COOKIE_MAX_AGE_SECONDS = 8 * 60 * 60;
+    private static final int DEFAULT_ASSERTION_REPLAY_CACHE_SIZE = 100000;
+    private static final int DEFAULT_LOGIN_QUEUE_SIZE = 100;
+    private static final int DEFAULT_LOGIN_QUEUE_TIMEOUT_MILLIS = 5000;
+    private static final int DEFAULT_LOGIN_RETRY_AFTER_SECONDS = 5;
+    private static final int DEFAULT_GROUP_SYNC_ASYNC_THREADS = 2;
+    private static final int DEFAULT_GROUP_SYNC_ASYNC_QUEUE_SIZE = 1000;
+    private static final int DEFAULT_GROUP_SYNC_ASYNC_RETRIES = 3;
+    private static final int DEFAULT_GROUP_WRITE_BATCH_SIZE = 200;
 
     public final String entityId;
     public final String assertionConsumerServiceUrl;
@@ -38,11 +51,33 @@ public class SamlAuthConfig {
     public final String idpSingleSignOnUrl;
     public final String x509Certificate;
     public final String defaultGroupForNewUsers;
+    public final String groupsAttributeName;
     public final String[] fieldMapping;
+    public final AttributeMapping attributeMapping;
     public final String authFieldName;
     public final String[] userNameRule;
     public final boolean shouldCapitalizeUserNames;
     public final boolean allowLoginFallback;
+    public final int userCacheSize;
+    public final int userCacheTtlSeconds;
+    public final int groupSyncReconcileLogins;
+    public final int groupSyncReconcileHours;
+    public final boolean authCookieEnabled;
+    public final String authCookieName;
+    public final String authCookieSecret;
+    public final int authCookieMaxAgeSeconds;
+    public final RequestClassifier requestClassifier;
+    public final int assertionReplayCacheSize;
+    public final int loginMaxConcurrent;
+    public final int loginQueueSize;
+    public final int loginQueueTimeoutMillis;
+    public final int loginRetryAfterSeconds;
+    public final boolean groupSyncAsync;
+    public final int groupSyncAsyncThreads;
+    public final int groupSyncAsyncQueueSize;
+    public final int groupSyncAsyncRetries;
+    public final int groupWriteIntervalMillis;
+    public final int groupWriteBatchSize;
 
     private SamlAuthConfig(
             String spEntityId,
@@ -52,11 +87,32 @@ public class SamlAuthConfig {
             String idpSingleSignOnUrl,
             String x509Certificate,
             String defaultGroupForNewUsers,
+            String groupsAttributeName,
             String[] fieldMapping,
             String authFieldName,
             String[] userNameRule,
             boolean shouldCapitalizeUserNames,
-            boolean allowLoginFallback
+            boolean allowLoginFallback,
+            int userCacheSize,
+            int userCacheTtlSeconds,
+            int groupSyncReconcileLogins,
+            int groupSyncReconcileHours,
+            boolean authCookieEnabled,
+            String authCookieName,
+            String authCookieSecret,
+            int authCookieMaxAgeSeconds,
+            String[] requestRules,
+            int assertionReplayCacheSize,
+            int loginMaxConcurrent,
+            int loginQueueSize,
+            int loginQueueTimeoutMillis,
+            int loginRetryAfterSeconds,
+            boolean groupSyncAsync,
+            int groupSyncAsyncThreads,
+            int groupSyncAsyncQueueSize,
+            int groupSyncAsyncRetries,
+            int groupWriteIntervalMillis,
+            int groupWriteBatchSize
             ) {
         this.entityId = spEntityId;
         this.assertionConsumerServiceUrl = assertionConsumerServiceUrl;
@@ -65,11 +121,33 @@ public class SamlAuthConfig {
         this.idpSingleSignOnUrl = idpSingleSignOnUrl;
         this.x509Certificate = x509Certificate;
         this.defaultGroupForNewUsers = defaultGroupForNewUsers;
+        this.groupsAttributeName = groupsAttributeName;
         this.fieldMapping = fieldMapping;
+        this.attributeMapping = AttributeMapping.compile(fieldMapping);
         this.authFieldName = authFieldName;
         this.userNameRule = userNameRule; 
         this.shouldCapitalizeUserNames = shouldCapitalizeUserNames;
         this.allowLoginFallback = allowLoginFallback;
+        this.userCacheSize = userCacheSize;
+        this.userCacheTtlSeconds = userCacheTtlSeconds;
+        this.groupSyncReconcileLogins = groupSyncReconcileLogins;
+        this.groupSyncReconcileHours = groupSyncReconcileHours;
+        this.authCookieEnabled = authCookieEnabled;
+        this.authCookieName = authCookieName;
+        this.authCookieSecret = authCookieSecret;
+        this.authCookieMaxAgeSeconds = authCookieMaxAgeSeconds;
+        this.requestClassifier = RequestClassifier.compile(requestRules);
+        this.assertionReplayCacheSize = assertionReplayCacheSize;
+        this.loginMaxConcurrent = loginMaxConcurrent;
+        this.loginQueueSize = loginQueueSize;
+        this.loginQueueTimeoutMillis = loginQueueTimeoutMillis;
+        this.loginRetryAfterSeconds = loginRetryAfterSeconds;
+        this.groupSyncAsync = groupSyncAsync;
+        this.groupSyncAsyncThreads = groupSyncAsyncThreads;
+        this.groupSyncAsyncQueueSize = groupSyncAsyncQueueSize;
+        this.groupSyncAsyncRetries = groupSyncAsyncRetries;
+        this.groupWriteIntervalMillis = groupWriteIntervalMillis;
+        this.groupWriteBatchSize = groupWriteBatchSize;
     }
 
     public static SamlAuthConfig from(ConfigurationSource cfg) {
@@ -81,11 +159,32 @@ public class SamlAuthConfig {
             property(cfg, "idp.single_sign_on_service.url"),
             property(cfg, "idp.x509cert"),
             property(cfg, "default_group_for_new_users", DEFAULT_GROUP_FOR_NEW_USERS),
+            property(cfg, "groups_attribute", DEFAULT_GROUPS_ATTRIBUTE),
             property(cfg, "fields_mapping", DEFAULT_FIELDS_MAPPING).split(","),
             property(cfg, "auth_field", DEFAULT_AUTH_FIELD),
             property(cfg, "xwiki_user_rule", DEFAULT_XWIKI_USERNAME_RULE).split(","),
             property(cfg, "xwiki_user_rule_capitalize", DEFAULT_XWIKI_USERNAME_RULE_CAPITALIZE).equalsIgnoreCase("true"),
-            property(cfg, "allow_login_fallback", "true").equalsIgnoreCase("true")
+            property(cfg, "allow_login_fallback", "true").equalsIgnoreCase("true"),
+            intProperty(cfg, "user_cache_size", DEFAULT_USER_CACHE_SIZE),
+            intProperty(cfg, "user_cache_ttl_seconds", DEFAULT_USER_CACHE_TTL_SECONDS),
+            intProperty(cfg, "group_sync_reconcile_logins", 0),
+            intProperty(cfg, "group_sync_reconcile_hours", 0),
+            property(cfg, "auth_cookie_enabled", "false").equalsIgnoreCase("true"),
+            property(cfg, "auth_cookie_name", DEFAULT_AUTH_COOKIE_NAME),
+            property(cfg, "auth_cookie_secret"),
+            intProperty(cfg, "auth_cookie_max_age_seconds", DEFAULT_AUTH_COOKIE_MAX_AGE_SECONDS),
+            property(cfg, "request_rules", "").split(","),
+            intProperty(cfg, "assertion_replay_cache_size", DEFAULT_ASSERTION_REPLAY_CACHE_SIZE),
+            intProperty(cfg, "login_max_concurrent", 0),
+            intProperty(cfg, "login_queue_size", DEFAULT_LOGIN_QUEUE_SIZE),
+            intProperty(cfg, "login_queue_timeout_ms", DEFAULT_LOGIN_QUEUE_TIMEOUT_MILLIS),
+            intProperty(cfg, "login_retry_after_seconds", DEFAULT_LOGIN_RETRY_AFTER_SECONDS),
+            property(cfg, "group_sync_async", "false").equalsIgnoreCase("true"),
+            intProperty(cfg, "group_sync_async_threads", DEFAULT_GROUP_SYNC_ASYNC_THREADS),
+            intProperty(cfg, "group_sync_async_queue_size", DEFAULT_GROUP_SYNC_ASYNC_QUEUE_SIZE),
+            intProperty(cfg, "group_sync_async_retries", DEFAULT_GROUP_SYNC_ASYNC_RETRIES),
+            intProperty(cfg, "group_write_interval_ms", 0),
+            intProperty(cfg, "group_write_batch_size", DEFAULT_GROUP_WRITE_BATCH_SIZE)
         );
     }
 
@@ -95,4 +194,7 @@ public class SamlAuthConfig {
     private static <T> T property(ConfigurationSource cfg, String propertyName, T defaultValue) {
         return cfg.getProperty(PROPERTY_PREFIX + propertyName, defaultValue);
     }
+    private static int intProperty(ConfigurationSource cfg, String propertyName, int defaultValue) {
+        return Integer.parseInt(property(cfg, propertyName, String.valueOf(defaultValue)).trim());
+    }
 }
@@ -28,10 +28,19 @@ import com.xpn.xwiki.user.api.XWikiUser;
 import com.xwiki.authentication.saml.AuthenticatedUserHandler;
 import com.xwiki.authentication.saml.NonAuthenticatedAccessHandler;
 import com.xwiki.authentication.saml.SamlAuthenticationHandler;
+import com.xwiki.authentication.saml.metrics.LoginGauge;
+import com.xwiki.authentication.saml.metrics.LoginMetrics;
+import com.xwiki.authentication.saml.metrics.LoginPhase;
+import com.xwiki.authentication.saml.xwiki.AsyncGroupSynchronizer;
+import com.xwiki.authentication.saml.xwiki.ResolvedPrincipalCache;
+import com.xwiki.authentication.saml.xwiki.UserReferenceCache;
 import com.xwiki.authentication.saml.xwiki.XWikiGroupManager;
+import com.xwiki.authentication.saml.xwiki.XWikiUserManager;
 import com.xwiki.authentication.saml.function.SupplierWithException;
 import com.xwiki.authentication.saml.onelogin.OneLoginAuth;
 import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import javax.servlet.http.HttpSession;
 import org.xwiki.model.EntityType;
 import org.xwiki.model.reference.DocumentReferenceResolver;
 import org.xwiki.model.reference.EntityReference;
@@ -41,12 +50,21 @@ public class SamlAuthenticator {
     public static final EntityReference PROFILE_PARENT = new EntityReference("XWikiUsers", EntityType.DOCUMENT,
             new EntityReference(XWiki.SYSTEM_SPACE, EntityType.SPACE));
     private final Saml2Settings samlSettings;
+    private final AuthnRequestBuilder authnRequestBuilder;
     private final SamlAuthConfig authConfig;
     private final DocumentReferenceResolver<String> currentMixedDocumentReferenceResolver;
     private final EntityReferenceSerializer<String> compactStringEntityReferenceSerializer;
     private final OneLoginAuth loginAuthFactory;
 
     private final XWikiGroupManager groupManager;
+    private final UserReferenceCache userReferenceCache;
+    private final AuthenticatedUserHandler authenticatedUserHandler;
+    private final XWikiUserManager xWikiUserManager;
+    private final SignedAuthCookie authCookie;
+    private final AssertionReplayCache assertionReplayCache;
+    private final LoginAdmissionControl loginAdmissionControl;
+    private final AsyncGroupSynchronizer asyncGroupSynchronizer;
+    private final LoginMetrics loginMetrics;
 
     public SamlAuthenticator(SamlAuthConfig authConfig,
                              DocumentReferenceResolver<String> currentMixedDocumentReferenceResolver,
@@ -59,6 +77,55 @@ public class SamlAuthenticator {
         this.compactStringEntityReferenceSerializer = compactStringEntityReferenceSerializer;
         this.loginAuthFactory = loginAuthFactory;
         this.samlSettings = buildSamlSettings();
+        this.authnRequestBuilder = AuthnRequestBuilder.from(samlSettings);
+        this.assertionReplayCache = new AssertionReplayCache(authConfig.assertionReplayCacheSize);
+        this.loginAdmissionControl = LoginAdmissionControl.from(authConfig);
+        this.userReferenceCache = new UserReferenceCache(authConfig.userCacheSize,
+                TimeUnit.SECONDS.toMillis(authConfig.userCacheTtlSeconds));
+        this.loginMetrics = new LoginMetrics(groupManager.getGroupSaveLatency());
+        registerLoginGauges();
+        this.xWikiUserManager = new XWikiUserManager(authConfig,
+                compactStringEntityReferenceSerializer,
+                currentMixedDocumentReferenceResolver,
+                userReferenceCache,
+                loginMetrics);
+        this.authCookie = SignedAuthCookie.from(authConfig);
+        this.asyncGroupSynchronizer = AsyncGroupSynchronizer.from(groupManager, authConfig);
+        this.authenticatedUserHandler = new AuthenticatedUserHandler(currentMixedDocumentReferenceResolver,
+                new ResolvedPrincipalCache(authConfig.userCacheSize));
+    }
+
+    private void registerLoginGauges() {
+        loginMetrics.registerGauge(LoginGauge.TRACKED_ASSERTIONS, assertionReplayCache::size);
+        loginMetrics.registerGauge(LoginGauge.UNTRACKED_ASSERTIONS, assertionReplayCache::getUntrackedCount);
+        loginMetrics.registerGauge(LoginGauge.LOGIN_QUEUE_DEPTH, loginAdmissionControl::getQueueDepth);
+        loginMetrics.registerGauge(LoginGauge.MAX_LOGIN_QUEUE_DEPTH, loginAdmissionControl::getMaxObservedQueueDepth);
+        loginMetrics.registerGauge(LoginGauge.AVAILABLE_LOGIN_PERMITS, loginAdmissionControl::getAvailablePermits);
+        loginMetrics.registerGauge(LoginGauge.ADMITTED_LOGINS, loginAdmissionControl::getAdmittedCount);
+        loginMetrics.registerGauge(LoginGauge.TOTAL_ADMISSION_WAIT_MILLIS, loginAdmissionControl::getTotalWaitMillis);
+        loginMetrics.registerGauge(LoginGauge.MAX_ADMISSION_WAIT_MILLIS, loginAdmissionControl::getMaxWaitMillis);
+        loginMetrics.registerGauge(LoginGauge.USER_CACHE_SIZE, userReferenceCache::size);
+        loginMetrics.registerGauge(LoginGauge.USER_CACHE_HITS, userReferenceCache::getHitCount);
+        loginMetrics.registerGauge(LoginGauge.USER_CACHE_MISSES, userReferenceCache::getMissCount);
+    }
+
+    public UserReferenceCache getUserReferenceCache() {
+        return userReferenceCache;
+    }
+
+    public LoginAdmissionControl getLoginAdmissionControl() {
+        return loginAdmissionControl;
+    }
+
+    public LoginMetrics getLoginMetrics() {
+        return loginMetrics;
+    }
+
+    // background synchronizations queue membership changes, so they must stop before the writer flushes
+    public void shutdown() {
+        asyncGroupSynchronizer.shutdown();
+        groupManager.getMembershipWriter().shutdown();
+        loginMetrics.unregisterMBeans();
     }
 
     private Saml2Settings buildSamlSettings() {
@@ -76,9 +143,13 @@ public class SamlAuthenticator {
     public XWikiUser checkAuth(XWikiContext context,
                                SupplierWithException<XWikiUser, XWikiException> defaultAuthHandler)
             throws XWikiException {
-        final Optional<String> samlUserName = getSamlAuthenticatedUserFromSession(context);
-        if (samlUserName.isPresent())
-            return new AuthenticatedUserHandler(context, currentMixedDocumentReferenceResolver).handle(samlUserName.get());
+        final long start = System.nanoTime();
+        final Optional<String> samlUserName = getSamlAuthenticatedUser(context);
+        if (samlUserName.isPresent()) {
+            final XWikiUser user = authenticatedUserHandler.handle(context, samlUserName.get());
+            loginMetrics.record(LoginPhase.AUTHENTICATED, start);
+            return user;
+        }
 
         if (isSamlAuthentication(context))
             return new SamlAuthenticationHandler(
@@ -88,10 +159,23 @@ public class SamlAuthenticator {
                     authConfig,
                     groupManager,
                     compactStringEntityReferenceSerializer,
-                    currentMixedDocumentReferenceResolver)
+                    xWikiUserManager,
+                    authCookie,
+                    assertionReplayCache,
+                    loginAdmissionControl,
+                    asyncGroupSynchronizer,
+                    loginMetrics)
                     .handle();
 
-        return new NonAuthenticatedAccessHandler(context,loginAuthFactory,samlSettings).handle(defaultAuthHandler);
+        final XWikiUser user = new NonAuthenticatedAccessHandler(
+                context,
+                loginAuthFactory,
+                samlSettings,
+                authConfig.requestClassifier,
+                authnRequestBuilder)
+                .handle(defaultAuthHandler);
+        loginMetrics.record(LoginPhase.ANONYMOUS, start);
+        return user;
     }
 
     private boolean isSamlAuthentication(XWikiContext context) {
@@ -102,7 +186,23 @@ public class SamlAuthenticator {
         return context.getRequest().getParameter("SAMLResponse");
     }
 
+    public Optional<String> getSamlAuthenticatedUser(XWikiContext context) {
+        final Optional<String> sessionUserName = getSamlAuthenticatedUserFromSession(context);
+        if (sessionUserName.isPresent() || !authCookie.isEnabled())
+            return sessionUserName;
+
+        if ("logout".equals(context.getAction())) {
+            authCookie.clear(context.getRequest(), context.getResponse());
+            return Optional.empty();
+        }
+        return authCookie.readUser(context.getRequest());
+    }
+
+    // Sessions are only created when a SAML login completes, anonymous requests must not create one
     public Optional<String> getSamlAuthenticatedUserFromSession(XWikiContext context) {
-        return Optional.ofNullable((String)context.getRequest().getSession(true).getAttribute(authConfig.authFieldName));
+        final HttpSession session = context.getRequest().getSession(false);
+        if (session == null)
+            return Optional.empty();
+        return Optional.ofNullable((String) session.getAttribute(authConfig.authFieldName));
     }
 }
@@ -21,13 +21,14 @@ package com.xwiki.authentication.saml.samlauth;
 
 import com.onelogin.saml2.Auth;
 import com.xwiki.authentication.saml.SamlAuthenticationHandler;
-import java.util.HashMap;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import org.apache.commons.lang3.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import static org.apache.commons.compress.utils.Sets.newHashSet;
-import static org.apache.commons.lang3.ObjectUtils.defaultIfNull;
 
 public class SamlXwikiAttributesExtractor {
     private static final Logger LOG = LoggerFactory.getLogger(SamlAuthenticationHandler.class);
@@ -50,12 +51,11 @@ public class SamlXwikiAttributesExtractor {
         }
 
         Saml2XWikiAttributes extractXWikiAttributesFromSaml() {
-            final Map<String, String> samlAttributes = extractSamlAttributes();
+            final Map<String, List<String>> samlAttributes = extractSamlAttributes();
 
-            final Set<String> groupsFromSaml = newHashSet((defaultIfNull(samlAttributes.get("XWikiGroups"), "")).split(","));
-            groupsFromSaml.add(authConfig.defaultGroupForNewUsers);
+            final Set<String> groupsFromSaml = extractGroups(samlAttributes);
 
-            final Map<String, String> xwikiAttributes = mapToXwikiAttributes(samlAttributes);
+            final Map<String, String> xwikiAttributes = authConfig.attributeMapping.toXWikiAttributes(samlAttributes);
             final String nameID = auth.getNameId();
             if (LOG.isDebugEnabled()) {
                 LOG.debug("SAML ID is [{}]", nameID);
@@ -65,47 +65,25 @@ public class SamlXwikiAttributesExtractor {
             return new Saml2XWikiAttributes(nameID, xwikiAttributes, groupsFromSaml);
         }
 
-        private Map<String, String> extractSamlAttributes() {
-            final Map<String, String> samlAttributes = new HashMap<>();
+        private Set<String> extractGroups(Map<String, List<String>> samlAttributes) {
+            final List<String> samlGroups = samlAttributes.getOrDefault(authConfig.groupsAttributeName, Collections.emptyList());
+            final Set<String> groupsFromSaml = new LinkedHashSet<>(samlGroups.size() + 1);
+            for (String group : samlGroups)
+                if (StringUtils.isNotBlank(group))
+                    groupsFromSaml.add(group);
+
+            groupsFromSaml.add(authConfig.defaultGroupForNewUsers);
+            return groupsFromSaml;
+        }
 
+        private Map<String, List<String>> extractSamlAttributes() {
             try {
                 LOG.debug("Reading authentication response");
-                auth.getAttributesName().forEach(attributeName ->
-                        samlAttributes.put(attributeName, String.join(",", auth.getAttributes().get(attributeName))));
-
+                return auth.getAttributes();
             } catch (Exception e1) {
                 LOG.error("Failed reading authentication response", e1);
                 throw e1;
             }
-            return samlAttributes;
-        }
-
-        private Map<String, String> mapToXwikiAttributes(Map<String, String> samlAttributes) {
-            final Map<String, String> extInfos = new HashMap<>();
-            for (Map.Entry<String, String> mapping : getSamlToXwikiMapping().entrySet()) {
-                final String samlAttributeValue = samlAttributes.get(mapping.getKey());
-
-                if (samlAttributeValue != null)
-                    extInfos.put(mapping.getValue(), samlAttributeValue);
-            }
-            return extInfos;
-        }
-
-        private Map<String, String> getSamlToXwikiMapping() {
-            final Map<String, String> userPropertiesMapping = new HashMap<>();
-            for (String fieldMapping : authConfig.fieldMapping) {
-                final String[] fieldAndValue = fieldMapping.split("=");
-                if (fieldAndValue.length != 2) {
-                    LOG.error("Error parsing SAML fields_mapping attribute in xwiki.cfg: [{}]", fieldMapping);
-                    continue;
-                }
-                final String xwikiPropertyName = fieldAndValue[0].trim();
-                final String samlAttributeName = fieldAndValue[1].trim();
-
-                userPropertiesMapping.put(samlAttributeName, xwikiPropertyName);
-            }
-
-            return userPropertiesMapping;
         }
     }
 }
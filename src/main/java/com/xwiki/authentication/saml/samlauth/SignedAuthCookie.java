@@ -0,0 +1,155 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.authentication.saml.samlauth;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Base64;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+public class SignedAuthCookie {
+    private static final Logger LOG = LoggerFactory.getLogger(SignedAuthCookie.class);
+    private static final String HMAC_ALGORITHM = "HmacSHA256";
+    private static final String SEPARATOR = ".";
+    private static final Base64.Encoder ENCODER = Base64.getUrlEncoder().withoutPadding();
+    private static final Base64.Decoder DECODER = Base64.getUrlDecoder();
+
+    private final boolean enabled;
+    private final String cookieName;
+    private final long maxAgeSeconds;
+    private final SecretKeySpec key;
+    private final LongSupplier clock;
+    private final ThreadLocal<Mac> macs;
+
+    SignedAuthCookie(boolean enabled, String cookieName, byte[] secret, long maxAgeSeconds, LongSupplier clock) {
+        this.enabled = enabled;
+        this.cookieName = cookieName;
+        this.maxAgeSeconds = maxAgeSeconds;
+        this.key = enabled ? new SecretKeySpec(secret, HMAC_ALGORITHM) : null;
+        this.clock = clock;
+        this.macs = ThreadLocal.withInitial(this::newMac);
+    }
+
+    public static SignedAuthCookie from(SamlAuthConfig authConfig) {
+        if (!authConfig.authCookieEnabled)
+            return disabled();
+
+        if (StringUtils.isBlank(authConfig.authCookieSecret)) {
+            LOG.error("Signed authentication cookie enabled without a secret, falling back to session authentication");
+            return disabled();
+        }
+        return new SignedAuthCookie(true, authConfig.authCookieName,
+                authConfig.authCookieSecret.getBytes(StandardCharsets.UTF_8),
+                authConfig.authCookieMaxAgeSeconds,
+                System::currentTimeMillis);
+    }
+
+    public static SignedAuthCookie disabled() {
+        return new SignedAuthCookie(false, null, null, 0, System::currentTimeMillis);
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public Optional<String> readUser(HttpServletRequest request) {
+        if (!enabled || request.getCookies() == null)
+            return Optional.empty();
+
+        for (Cookie cookie : request.getCookies())
+            if (cookieName.equals(cookie.getName()))
+                return validate(cookie.getValue());
+
+        return Optional.empty();
+    }
+
+    public void issue(HttpServletRequest request, HttpServletResponse response, String userName) {
+        if (enabled)
+            response.addHeader("Set-Cookie", header(request, sign(userName), maxAgeSeconds));
+    }
+
+    public void clear(HttpServletRequest request, HttpServletResponse response) {
+        if (enabled)
+            response.addHeader("Set-Cookie", header(request, "", 0));
+    }
+
+    String sign(String userName) {
+        final long expiresAt = TimeUnit.MILLISECONDS.toSeconds(clock.getAsLong()) + maxAgeSeconds;
+        final String payload = ENCODER.encodeToString(userName.getBytes(StandardCharsets.UTF_8)) + SEPARATOR + expiresAt;
+        return payload + SEPARATOR + ENCODER.encodeToString(hmac(payload));
+    }
+
+    Optional<String> validate(String cookieValue) {
+        if (cookieValue == null)
+            return Optional.empty();
+
+        final int signatureStart = cookieValue.lastIndexOf(SEPARATOR);
+        final int expiryStart = signatureStart <= 0 ? -1 : cookieValue.lastIndexOf(SEPARATOR, signatureStart - 1);
+        if (expiryStart <= 0)
+            return Optional.empty();
+
+        try {
+            final String payload = cookieValue.substring(0, signatureStart);
+            final byte[] signature = DECODER.decode(cookieValue.substring(signatureStart + 1));
+            if (!MessageDigest.isEqual(hmac(payload), signature))
+                return Optional.empty();
+
+            final long expiresAt = Long.parseLong(cookieValue.substring(expiryStart + 1, signatureStart));
+            if (TimeUnit.MILLISECONDS.toSeconds(clock.getAsLong()) >= expiresAt)
+                return Optional.empty();
+
+            return Optional.of(new String(DECODER.decode(cookieValue.substring(0, expiryStart)), StandardCharsets.UTF_8));
+        } catch (IllegalArgumentException e) {
+            LOG.debug("Ignoring malformed authentication cookie", e);
+            return Optional.empty();
+        }
+    }
+
+    private String header(HttpServletRequest request, String value, long maxAge) {
+        final String path = StringUtils.defaultIfEmpty(request.getContextPath(), "/");
+        return cookieName + "=" + value + "; Max-Age=" + maxAge + "; Path=" + path + "; HttpOnly; SameSite=Lax"
+                + (request.isSecure() ? "; Secure" : "");
+    }
+
+    private byte[] hmac(String payload) {
+        return macs.get().doFinal(payload.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private Mac newMac() {
+        try {
+            final Mac mac = Mac.getInstance(HMAC_ALGORITHM);
+            mac.init(key);
+            return mac;
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("Could not initialize " + HMAC_ALGORITHM, e);
+        }
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.authentication.saml.samlauth;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+// Hierarchical timing wheel: each level has the same number of slots, every level ticks as slowly as a full
+// turn of the level below. Entries never expire before their deadline, at most one tick later.
+class TimeWheel<T> {
+    private final long tickMillis;
+    private final int wheelSize;
+    private final long[] levelTicks;
+    private final List<List<Entry<T>>> slots;
+    private long currentTick;
+
+    TimeWheel(long tickMillis, int wheelSize, int levels, long now) {
+        this.tickMillis = tickMillis;
+        this.wheelSize = wheelSize;
+        this.levelTicks = new long[levels];
+        this.slots = new ArrayList<>(levels * wheelSize);
+        long ticks = 1;
+        for (int level = 0; level < levels; level++) {
+            levelTicks[level] = ticks;
+            ticks *= wheelSize;
+        }
+        for (int i = 0; i < levels * wheelSize; i++)
+            slots.add(new ArrayList<>());
+        this.currentTick = now / tickMillis;
+    }
+
+    // returns false when the deadline has already passed
+    boolean schedule(T value, long deadline) {
+        if (deadline <= currentTick * tickMillis)
+            return false;
+        insert(new Entry<>(value, deadline));
+        return true;
+    }
+
+    void advanceTo(long now, Consumer<T> expired) {
+        final long targetTick = now / tickMillis;
+        if (targetTick - currentTick > levelTicks[levelTicks.length - 1] * wheelSize) {
+            reinsertEverything(targetTick, now, expired);
+            return;
+        }
+        while (currentTick < targetTick) {
+            currentTick++;
+            for (int level = levelTicks.length - 1; level > 0; level--) {
+                if (currentTick % levelTicks[level] == 0)
+                    drain(slot(level, currentTick), entry -> reinsertOrExpire(entry, expired));
+            }
+            drain(slot(0, currentTick), entry -> reinsertOrExpire(entry, expired));
+        }
+    }
+
+    private void reinsertEverything(long targetTick, long now, Consumer<T> expired) {
+        final List<Entry<T>> pending = new ArrayList<>();
+        slots.forEach(slot -> drain(slot, pending::add));
+        currentTick = targetTick;
+        for (Entry<T> entry : pending) {
+            if (entry.deadline <= now)
+                expired.accept(entry.value);
+            else
+                insert(entry);
+        }
+    }
+
+    private void reinsertOrExpire(Entry<T> entry, Consumer<T> expired) {
+        if (deadlineTick(entry) <= currentTick)
+            expired.accept(entry.value);
+        else
+            insert(entry);
+    }
+
+    private void insert(Entry<T> entry) {
+        final long deadlineTick = deadlineTick(entry);
+        for (int level = 0; level < levelTicks.length; level++) {
+            if (deadlineTick / levelTicks[level] - currentTick / levelTicks[level] < wheelSize) {
+                slot(level, deadlineTick).add(entry);
+                return;
+            }
+        }
+        // beyond the last level: park it in the farthest slot, it is placed again when that slot turns
+        final int top = levelTicks.length - 1;
+        slot(top, currentTick + levelTicks[top] * (wheelSize - 1)).add(entry);
+    }
+
+    // rounds up, so an entry is never handed out before its deadline
+    private long deadlineTick(Entry<T> entry) {
+        return (entry.deadline + tickMillis - 1) / tickMillis;
+    }
+
+    private List<Entry<T>> slot(int level, long tick) {
+        return slots.get(level * wheelSize + (int) ((tick / levelTicks[level]) % wheelSize));
+    }
+
+    private static <T> void drain(List<Entry<T>> slot, Consumer<Entry<T>> consumer) {
+        if (slot.isEmpty())
+            return;
+        final List<Entry<T>> entries = new ArrayList<>(slot);
+        slot.clear();
+        entries.forEach(consumer);
+    }
+
+    private static class Entry<T> {
+        private final T value;
+        private final long deadline;
+
+        Entry(T value, long deadline) {
+            this.value = value;
+            this.deadline = deadline;
+        }
+    }
+}
@@ -0,0 +1,177 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.authentication.saml.xwiki;
+
+import com.xpn.xwiki.XWikiContext;
+import com.xpn.xwiki.XWikiException;
+import com.xwiki.authentication.saml.samlauth.Saml2XWikiAttributes;
+import com.xwiki.authentication.saml.samlauth.SamlAuthConfig;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xwiki.model.reference.DocumentReference;
+
+// Runs the group synchronization after the login response. Only the latest pending synchronization of a user
+// is kept and a single worker at a time handles a given user, so the groups always end up as the IDP last sent.
+public class AsyncGroupSynchronizer {
+    private static final Logger LOG = LoggerFactory.getLogger(AsyncGroupSynchronizer.class);
+    private static final long RETRY_BACKOFF_MILLIS = 200;
+    private static final long SHUTDOWN_TIMEOUT_SECONDS = 30;
+
+    private final SyncTask syncTask;
+    private final BiConsumer<XWikiContext, Runnable> backgroundRunner;
+    private final int maxRetries;
+    private final ThreadPoolExecutor executor;
+    private final Map<DocumentReference, SyncJob> pendingByUser = new HashMap<>();
+    private final Set<DocumentReference> scheduledUsers = new HashSet<>();
+
+    AsyncGroupSynchronizer(XWikiGroupManager groupManager, GroupSyncPolicy syncPolicy, int threads, int queueSize,
+                           int maxRetries) {
+        this((userReference, attributes, context) -> new XWikiUserGroupSynchronizer(groupManager, context, syncPolicy)
+                        .syncUserGroups(userReference, attributes),
+                BackgroundXWikiContext::run, threads, queueSize, maxRetries);
+    }
+
+    AsyncGroupSynchronizer(SyncTask syncTask, BiConsumer<XWikiContext, Runnable> backgroundRunner, int threads,
+                           int queueSize, int maxRetries) {
+        this.syncTask = syncTask;
+        this.backgroundRunner = backgroundRunner;
+        this.maxRetries = maxRetries;
+        this.executor = threads <= 0 ? null : new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(Math.max(1, queueSize)), BackgroundXWikiContext.threadFactory("saml-group-sync-"));
+    }
+
+    public static AsyncGroupSynchronizer from(XWikiGroupManager groupManager, SamlAuthConfig authConfig) {
+        return new AsyncGroupSynchronizer(groupManager, GroupSyncPolicy.from(authConfig),
+                authConfig.groupSyncAsync ? authConfig.groupSyncAsyncThreads : 0,
+                authConfig.groupSyncAsyncQueueSize,
+                authConfig.groupSyncAsyncRetries);
+    }
+
+    public boolean isEnabled() {
+        return executor != null && !executor.isShutdown();
+    }
+
+    public void submit(DocumentReference userReference, Saml2XWikiAttributes attributes, XWikiContext context) {
+        synchronized (this) {
+            final boolean alreadyPending = pendingByUser.put(userReference, new SyncJob(userReference, attributes,
+                    BackgroundXWikiContext.detachedCopyOf(context))) != null;
+            if (alreadyPending || !scheduledUsers.add(userReference))
+                return;
+        }
+        try {
+            executor.execute(() -> drain(userReference,
+                    job -> backgroundRunner.accept(job.context, () -> syncWithRetries(job))));
+        } catch (RejectedExecutionException e) {
+            // the request thread already has its execution context
+            LOG.debug("Group synchronization queue is full, synchronizing groups of [{}] in the request", userReference);
+            drain(userReference, this::syncWithRetries);
+        }
+    }
+
+    public int getPendingCount() {
+        synchronized (this) {
+            return pendingByUser.size();
+        }
+    }
+
+    public void shutdown() {
+        if (executor == null)
+            return;
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(SHUTDOWN_TIMEOUT_SECONDS, TimeUnit.SECONDS))
+                LOG.warn("Pending SAML group synchronizations didn't complete in {} seconds: {} users left",
+                        SHUTDOWN_TIMEOUT_SECONDS, getPendingCount());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void drain(DocumentReference userReference, Consumer<SyncJob> runner) {
+        while (true) {
+            final SyncJob job;
+            synchronized (this) {
+                job = pendingByUser.remove(userReference);
+                if (job == null) {
+                    scheduledUsers.remove(userReference);
+                    return;
+                }
+            }
+            runner.accept(job);
+        }
+    }
+
+    private void syncWithRetries(SyncJob job) {
+        for (int attempt = 0; ; attempt++) {
+            try {
+                final GroupSyncResult result = syncTask.sync(job.userReference, job.attributes, job.context);
+                LOG.debug("Groups of user [{}] synchronized in background: {}", job.userReference, result);
+                return;
+            } catch (XWikiException | RuntimeException e) {
+                if (attempt >= maxRetries) {
+                    LOG.error("Failed to synchronize groups of user [{}] after {} attempts", job.userReference,
+                            attempt + 1, e);
+                    return;
+                }
+                // most failures here are concurrent saves of the same group document, which succeed when retried
+                LOG.debug("Group synchronization of user [{}] failed, retrying", job.userReference, e);
+                if (!sleep(RETRY_BACKOFF_MILLIS * (attempt + 1)))
+                    return;
+            }
+        }
+    }
+
+    private static boolean sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    interface SyncTask {
+        GroupSyncResult sync(DocumentReference userReference, Saml2XWikiAttributes attributes, XWikiContext context)
+                throws XWikiException;
+    }
+
+    private static class SyncJob {
+        private final DocumentReference userReference;
+        private final Saml2XWikiAttributes attributes;
+        private final XWikiContext context;
+
+        SyncJob(DocumentReference userReference, Saml2XWikiAttributes attributes, XWikiContext context) {
+            this.userReference = userReference;
+            this.attributes = attributes;
+            this.context = context;
+        }
+    }
+}
@@ -0,0 +1,69 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.authentication.saml.xwiki;
+
+import com.xpn.xwiki.XWikiContext;
+import com.xpn.xwiki.util.AbstractXWikiRunnable;
+import com.xpn.xwiki.web.XWikiServletRequestStub;
+import com.xpn.xwiki.web.XWikiServletResponseStub;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+final class BackgroundXWikiContext {
+    private BackgroundXWikiContext() {
+    }
+
+    // the request context is recycled once the response is sent
+    static XWikiContext detachedCopyOf(XWikiContext context) {
+        final XWikiContext copy = context.clone();
+        copy.setRequest(new XWikiServletRequestStub());
+        copy.setResponse(new XWikiServletResponseStub());
+        return copy;
+    }
+
+    static void run(XWikiContext context, Runnable task) {
+        new AbstractXWikiRunnable(XWikiContext.EXECUTIONCONTEXT_KEY, context) {
+            @Override
+            protected void runInternal() {
+                task.run();
+            }
+        }.run();
+    }
+
+    // virtual threads are used when the JVM has them, the workers mostly wait on the database
+    static ThreadFactory threadFactory(String namePrefix) {
+        final AtomicInteger count = new AtomicInteger();
+        ThreadFactory delegate;
+        try {
+            final Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            delegate = (ThreadFactory) Class.forName("java.lang.Thread$Builder").getMethod("factory").invoke(builder);
+        } catch (ReflectiveOperationException e) {
+            delegate = Executors.defaultThreadFactory();
+        }
+        final ThreadFactory threads = delegate;
+        return runnable -> {
+            final Thread thread = threads.newThread(runnable);
+            thread.setName(namePrefix + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+}
@@ -0,0 +1,59 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.authentication.saml.xwiki;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+public final class Fingerprint {
+    private static final char SEPARATOR = '\u0000';
+
+    private Fingerprint() {
+    }
+
+    public static String of(Collection<String> values) {
+        final StringBuilder canonical = new StringBuilder();
+        for (String value: new TreeSet<>(values))
+            canonical.append(value).append(SEPARATOR);
+        return digest(canonical.toString());
+    }
+
+    public static String of(Map<String, String> values) {
+        final StringBuilder canonical = new StringBuilder();
+        for (Map.Entry<String, String> entry: new TreeMap<>(values).entrySet())
+            canonical.append(entry.getKey()).append('=').append(entry.getValue()).append(SEPARATOR);
+        return digest(canonical.toString());
+    }
+
+    private static String digest(String canonical) {
+        try {
+            final byte[] hash = MessageDigest.getInstance("SHA-256").digest(canonical.getBytes(StandardCharsets.UTF_8));
+            return Base64.getUrlEncoder().withoutPadding().encodeToString(hash);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+}
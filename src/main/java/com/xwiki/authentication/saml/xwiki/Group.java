@@ -25,11 +25,10 @@ import com.xpn.xwiki.XWikiException;
 import com.xpn.xwiki.doc.XWikiDocument;
 import com.xpn.xwiki.objects.BaseObject;
 import com.xpn.xwiki.objects.classes.BaseClass;
-import java.util.Collections;
-import java.util.List;
-import java.util.Objects;
-import java.util.Optional;
-import java.util.stream.Collectors;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
 import org.xwiki.model.EntityType;
 import org.xwiki.model.reference.DocumentReference;
 import org.xwiki.model.reference.DocumentReferenceResolver;
@@ -43,29 +42,30 @@ public class Group {
             new EntityReference(XWiki.SYSTEM_SPACE, EntityType.SPACE));
     private final XWikiDocument groupDoc;
     private final XWikiContext context;
-    private final DocumentReferenceResolver<String> groupResolver;
-
-    public Group(String groupName, XWikiContext context, DocumentReferenceResolver<String> groupResolver) throws XWikiException {
-        this.groupResolver = groupResolver;
-        this.groupDoc = context.getWiki().getDocument(getGroupReferenceForName(groupName), context);
+    private final GroupMembershipIndex membershipIndex;
+    private BaseClass groupClass;
+    private GroupMembershipIndex.Members members;
+    // the index is shared by every instance of the group document version, it only learns about the changes
+    // once they are saved
+    private final Map<String, Integer> addedMembers = new LinkedHashMap<>();
+    private final Set<String> removedMembers = new HashSet<>();
+
+    public Group(DocumentReference groupReference, XWikiContext context, GroupMembershipIndex membershipIndex) throws XWikiException {
+        this.groupDoc = context.getWiki().getDocument(groupReference, context);
         this.context = context;
+        this.membershipIndex = membershipIndex;
     }
 
     public boolean hasMember(String xwikiUserName) throws XWikiException {
-        return getGroupMembers(groupDoc).stream()
-                .anyMatch(groupMember -> Objects.equals(getMemberName(groupMember), xwikiUserName));
+        if (addedMembers.containsKey(xwikiUserName))
+            return true;
+        return !removedMembers.contains(xwikiUserName) && getMembers().contains(xwikiUserName);
     }
 
-    private String getMemberName(BaseObject groupMember) {
-        return groupMember.getStringValue(XWIKI_GROUP_MEMBERFIELD);
-    }
-
-    private List<BaseObject> getGroupMembers(XWikiDocument groupDoc) throws XWikiException {
-        final List<BaseObject> groupMembers = groupDoc.getXObjects(getGroupClass().getDocumentReference());
-        if (groupMembers == null)
-            return Collections.emptyList();
-
-        return groupMembers.stream().filter(Objects::nonNull).collect(Collectors.toList());
+    private GroupMembershipIndex.Members getMembers() throws XWikiException {
+        if (members == null)
+            members = membershipIndex.membersOf(groupDoc, getGroupClass().getDocumentReference(), XWIKI_GROUP_MEMBERFIELD);
+        return members;
     }
 
     public String getGroupName() {
@@ -73,12 +73,17 @@ public class Group {
     }
 
     public void addMember(String xwikiUserName) throws XWikiException {
+        // indexed before the document changes, the new object must only reach the index once saved
+        getMembers();
         final BaseObject memberObj = groupDoc.newXObject(getGroupClass().getDocumentReference(), context);
         getGroupClass().fromMap(singletonMap(XWIKI_GROUP_MEMBERFIELD, xwikiUserName), memberObj);
+        addedMembers.putIfAbsent(xwikiUserName, memberObj.getNumber());
     }
 
     private BaseClass getGroupClass() throws XWikiException {
-        return context.getWiki().getGroupClass(context);
+        if (groupClass == null)
+            groupClass = context.getWiki().getGroupClass(context);
+        return groupClass;
     }
 
     public boolean isNew() {
@@ -92,17 +97,37 @@ public class Group {
 
     public void save() throws XWikiException {
         context.getWiki().saveDocument(groupDoc, context);
+        if (members != null) {
+            for (String removedMember : removedMembers)
+                members.remove(removedMember);
+            addedMembers.forEach(members::add);
+            membershipIndex.saved(groupDoc, members);
+        }
+        addedMembers.clear();
+        removedMembers.clear();
     }
 
-    public void removeUser(String xwikiUserName) throws XWikiException {
-        getUserMembership(xwikiUserName).ifPresent(groupDoc::removeXObject);
+    public boolean removeUser(String xwikiUserName) throws XWikiException {
+        final Integer memberNumber = memberNumberOf(xwikiUserName);
+        if (memberNumber == null)
+            return false;
+
+        addedMembers.remove(xwikiUserName);
+        if (getMembers().contains(xwikiUserName))
+            removedMembers.add(xwikiUserName);
+        final BaseObject membership = groupDoc.getXObject(getGroupClass().getDocumentReference(), memberNumber);
+        return membership != null && groupDoc.removeXObject(membership);
     }
 
-    private Optional<BaseObject> getUserMembership(String xwikiUserName) throws XWikiException {
-        return Optional.ofNullable(groupDoc.getXObject(getGroupClass().getDocumentReference(), XWIKI_GROUP_MEMBERFIELD, xwikiUserName));
+    private Integer memberNumberOf(String xwikiUserName) throws XWikiException {
+        if (addedMembers.containsKey(xwikiUserName))
+            return addedMembers.get(xwikiUserName);
+        if (removedMembers.contains(xwikiUserName))
+            return null;
+        return getMembers().numberOf(xwikiUserName);
     }
 
-    private DocumentReference getGroupReferenceForName(String validGroupName) {
+    public static DocumentReference getGroupReferenceForName(String validGroupName, DocumentReferenceResolver<String> groupResolver) {
         return groupResolver.resolve(validGroupName, GROUP_PARENT);
     }
 }
@@ -0,0 +1,56 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.authentication.saml.xwiki;
+
+import com.xpn.xwiki.doc.XWikiDocument;
+import java.util.Arrays;
+import java.util.List;
+import org.xwiki.bridge.event.DocumentDeletedEvent;
+import org.xwiki.bridge.event.DocumentUpdatedEvent;
+import org.xwiki.observation.EventListener;
+import org.xwiki.observation.event.Event;
+
+public class GroupDocumentListener implements EventListener {
+    public static final String NAME = "SamlGroupDocumentListener";
+    private final GroupMembershipIndex membershipIndex;
+
+    public GroupDocumentListener(GroupMembershipIndex membershipIndex) {
+        this.membershipIndex = membershipIndex;
+    }
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public List<Event> getEvents() {
+        return Arrays.asList(new DocumentUpdatedEvent(), new DocumentDeletedEvent());
+    }
+
+    @Override
+    public void onEvent(Event event, Object source, Object data) {
+        final XWikiDocument document = (XWikiDocument) source;
+        if (event instanceof DocumentDeletedEvent)
+            membershipIndex.remove(document.getDocumentReference());
+        else
+            membershipIndex.invalidate(document);
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.authentication.saml.xwiki;
+
+import com.xpn.xwiki.doc.XWikiDocument;
+import com.xpn.xwiki.objects.BaseObject;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import org.xwiki.model.reference.DocumentReference;
+
+public class GroupMembershipIndex {
+    private static final int DEFAULT_MAX_INDEXED_GROUPS = 1000;
+    private final Map<DocumentReference, Members> membersByGroup;
+
+    public GroupMembershipIndex() {
+        this(DEFAULT_MAX_INDEXED_GROUPS);
+    }
+
+    public GroupMembershipIndex(int maxIndexedGroups) {
+        this.membersByGroup = new LinkedHashMap<DocumentReference, Members>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<DocumentReference, Members> eldest) {
+                return size() > maxIndexedGroups;
+            }
+        };
+    }
+
+    Members membersOf(XWikiDocument groupDoc, DocumentReference groupClassReference, String memberField) {
+        final DocumentReference groupReference = referenceOf(groupDoc);
+        synchronized (this) {
+            final Members members = membersByGroup.get(groupReference);
+            if (members != null && members.isValidFor(groupDoc))
+                return members;
+        }
+
+        final Members members = new Members(groupDoc.getVersion());
+        final List<BaseObject> memberObjects = groupDoc.getXObjects(groupClassReference);
+        if (memberObjects != null)
+            for (BaseObject memberObject: memberObjects)
+                if (memberObject != null)
+                    members.numberByMember.putIfAbsent(memberObject.getStringValue(memberField), memberObject.getNumber());
+
+        synchronized (this) {
+            membersByGroup.put(groupReference, members);
+        }
+        return members;
+    }
+
+    // the update event of our own save evicts the entry before the new version is known, so it is put back here
+    synchronized void saved(XWikiDocument groupDoc, Members members) {
+        members.version = groupDoc.getVersion();
+        membersByGroup.put(referenceOf(groupDoc), members);
+    }
+
+    public synchronized void invalidate(XWikiDocument document) {
+        final Members members = membersByGroup.get(referenceOf(document));
+        if (members != null && !members.isValidFor(document))
+            membersByGroup.remove(referenceOf(document));
+    }
+
+    public synchronized void remove(DocumentReference documentReference) {
+        membersByGroup.remove(new DocumentReference(documentReference, (Locale) null));
+    }
+
+    public synchronized int size() {
+        return membersByGroup.size();
+    }
+
+    private static DocumentReference referenceOf(XWikiDocument document) {
+        return new DocumentReference(document.getDocumentReference(), (Locale) null);
+    }
+
+    // Member object numbers stay stable when objects are removed, so they remain valid for every
+    // instance of the same document version
+    static class Members {
+        private final Map<String, Integer> numberByMember = new HashMap<>();
+        private volatile String version;
+
+        Members(String version) {
+            this.version = version;
+        }
+
+        boolean isValidFor(XWikiDocument groupDoc) {
+            return !groupDoc.isNew() && Objects.equals(version, groupDoc.getVersion());
+        }
+
+        boolean contains(String member) {
+            return numberByMember.containsKey(member);
+        }
+
+        Integer numberOf(String member) {
+            return numberByMember.get(member);
+        }
+
+        void add(String member, int number) {
+            numberByMember.putIfAbsent(member, number);
+        }
+
+        void remove(String member) {
+            numberByMember.remove(member);
+        }
+    }
+}
@@ -0,0 +1,187 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.authentication.saml.xwiki;
+
+import com.xpn.xwiki.XWikiContext;
+import com.xpn.xwiki.XWikiException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xwiki.model.reference.DocumentReference;
+
+// Collects membership changes per group and saves each group document once per flush instead of once per login.
+// Callers must hold the group lock when queueing, flushes take the same lock.
+public class GroupMembershipWriter {
+    private static final Logger LOG = LoggerFactory.getLogger(GroupMembershipWriter.class);
+
+    interface GroupWriter {
+        void write(DocumentReference groupReference, Map<String, Boolean> membershipChanges, XWikiContext context)
+                throws XWikiException;
+    }
+
+    private final long flushIntervalMillis;
+    private final int batchSize;
+    private final StripedLocks groupLocks;
+    private final GroupWriter groupWriter;
+    private final Map<DocumentReference, PendingGroup> pendingGroups = new LinkedHashMap<>();
+    private final ScheduledExecutorService scheduler;
+
+    GroupMembershipWriter(long flushIntervalMillis, int batchSize, StripedLocks groupLocks, GroupWriter groupWriter) {
+        this.flushIntervalMillis = flushIntervalMillis;
+        this.batchSize = Math.max(1, batchSize);
+        this.groupLocks = groupLocks;
+        this.groupWriter = groupWriter;
+        if (flushIntervalMillis <= 0) {
+            this.scheduler = null;
+            return;
+        }
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(BackgroundXWikiContext.threadFactory("saml-group-writer-"));
+        scheduler.scheduleWithFixedDelay(this::flushInBackground, flushIntervalMillis, flushIntervalMillis,
+                TimeUnit.MILLISECONDS);
+    }
+
+    public boolean isEnabled() {
+        return scheduler != null && !scheduler.isShutdown();
+    }
+
+    public long getFlushIntervalMillis() {
+        return flushIntervalMillis;
+    }
+
+    // true when the given member has a change waiting to be written, it then takes precedence over the document
+    boolean hasPendingChange(DocumentReference groupReference, String member) {
+        synchronized (pendingGroups) {
+            final PendingGroup pendingGroup = pendingGroups.get(groupReference);
+            return pendingGroup != null && pendingGroup.changes.containsKey(member);
+        }
+    }
+
+    void queue(DocumentReference groupReference, String member, boolean isMember, XWikiContext context) {
+        final boolean batchIsFull;
+        synchronized (pendingGroups) {
+            final PendingGroup pendingGroup = pendingGroups.computeIfAbsent(groupReference,
+                    reference -> new PendingGroup(BackgroundXWikiContext.detachedCopyOf(context)));
+            pendingGroup.changes.put(member, isMember);
+            batchIsFull = pendingGroup.changes.size() >= batchSize;
+        }
+        if (!batchIsFull)
+            return;
+        try {
+            scheduler.execute(() -> flushGroupInBackground(groupReference));
+        } catch (RejectedExecutionException e) {
+            flushGroup(groupReference);
+        }
+    }
+
+    public int getPendingChangesCount() {
+        synchronized (pendingGroups) {
+            return pendingGroups.values().stream().mapToInt(pendingGroup -> pendingGroup.changes.size()).sum();
+        }
+    }
+
+    // writes every pending change in the calling thread, which must have an XWiki execution context
+    public void flush() {
+        for (DocumentReference groupReference : pendingGroupReferences())
+            flushGroup(groupReference);
+    }
+
+    public void shutdown() {
+        if (scheduler == null)
+            return;
+        scheduler.shutdown();
+        try {
+            scheduler.awaitTermination(flushIntervalMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        flushInBackground();
+    }
+
+    private void flushInBackground() {
+        for (DocumentReference groupReference : pendingGroupReferences())
+            flushGroupInBackground(groupReference);
+    }
+
+    private void flushGroupInBackground(DocumentReference groupReference) {
+        final XWikiContext context;
+        synchronized (pendingGroups) {
+            final PendingGroup pendingGroup = pendingGroups.get(groupReference);
+            if (pendingGroup == null)
+                return;
+            context = pendingGroup.context;
+        }
+        BackgroundXWikiContext.run(context, () -> flushGroup(groupReference));
+    }
+
+    private void flushGroup(DocumentReference groupReference) {
+        final Lock groupLock = groupLocks.lockFor(groupReference);
+        groupLock.lock();
+        try {
+            final PendingGroup pendingGroup;
+            synchronized (pendingGroups) {
+                pendingGroup = pendingGroups.remove(groupReference);
+            }
+            if (pendingGroup == null)
+                return;
+            try {
+                groupWriter.write(groupReference, pendingGroup.changes, pendingGroup.context);
+            } catch (XWikiException | RuntimeException e) {
+                LOG.error("Failed to write {} membership changes of group [{}], retrying on next flush",
+                        pendingGroup.changes.size(), groupReference, e);
+                requeue(groupReference, pendingGroup);
+            }
+        } finally {
+            groupLock.unlock();
+        }
+    }
+
+    // changes queued while the write failed are newer and win over the failed ones
+    private void requeue(DocumentReference groupReference, PendingGroup failed) {
+        synchronized (pendingGroups) {
+            final PendingGroup newer = pendingGroups.get(groupReference);
+            if (newer != null)
+                failed.changes.putAll(newer.changes);
+            pendingGroups.put(groupReference, failed);
+        }
+    }
+
+    private List<DocumentReference> pendingGroupReferences() {
+        synchronized (pendingGroups) {
+            return new ArrayList<>(pendingGroups.keySet());
+        }
+    }
+
+    private static class PendingGroup {
+        private final Map<String, Boolean> changes = new LinkedHashMap<>();
+        private final XWikiContext context;
+
+        PendingGroup(XWikiContext context) {
+            this.context = context;
+        }
+    }
+}
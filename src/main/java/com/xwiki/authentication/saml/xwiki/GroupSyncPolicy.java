@@ -0,0 +1,67 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.authentication.saml.xwiki;
+
+import com.xwiki.authentication.saml.samlauth.SamlAuthConfig;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntUnaryOperator;
+import java.util.function.LongSupplier;
+
+public class GroupSyncPolicy {
+    private final int reconcileEveryLogins;
+    private final long reconcileEveryMillis;
+    private final LongSupplier clock;
+    private final IntUnaryOperator randomBelow;
+
+    GroupSyncPolicy(int reconcileEveryLogins, long reconcileEveryMillis, LongSupplier clock) {
+        this(reconcileEveryLogins, reconcileEveryMillis, clock, bound -> ThreadLocalRandom.current().nextInt(bound));
+    }
+
+    GroupSyncPolicy(int reconcileEveryLogins, long reconcileEveryMillis, LongSupplier clock, IntUnaryOperator randomBelow) {
+        this.reconcileEveryLogins = reconcileEveryLogins;
+        this.reconcileEveryMillis = reconcileEveryMillis;
+        this.clock = clock;
+        this.randomBelow = randomBelow;
+    }
+
+    public static GroupSyncPolicy from(SamlAuthConfig authConfig) {
+        return new GroupSyncPolicy(authConfig.groupSyncReconcileLogins,
+                TimeUnit.HOURS.toMillis(authConfig.groupSyncReconcileHours),
+                System::currentTimeMillis);
+    }
+
+    public boolean tracksReconcileTime() {
+        return reconcileEveryMillis > 0;
+    }
+
+    public long now() {
+        return clock.getAsLong();
+    }
+
+    // Counting logins would cost a user document save on every login, so the login based reconcile is sampled
+    // instead: on average one login out of reconcileEveryLogins runs the full synchronization.
+    public boolean isReconcileDue(long lastReconcile) {
+        if (reconcileEveryLogins > 0 && randomBelow.applyAsInt(reconcileEveryLogins) == 0)
+            return true;
+
+        return tracksReconcileTime() && now() - lastReconcile >= reconcileEveryMillis;
+    }
+}
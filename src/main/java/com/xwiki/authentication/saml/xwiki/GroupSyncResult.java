@@ -0,0 +1,56 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.authentication.saml.xwiki;
+
+public class GroupSyncResult {
+    public final boolean skipped;
+    public final int groupsAdded;
+    public final int groupsRemoved;
+    public final int documentsWritten;
+    public final int writesAvoided;
+    public final boolean userSaved;
+
+    GroupSyncResult(int groupsAdded, int groupsRemoved, int groupsToRemove, boolean userSaved) {
+        this(false, groupsAdded, groupsRemoved, groupsToRemove, userSaved);
+    }
+
+    private GroupSyncResult(boolean skipped, int groupsAdded, int groupsRemoved, int groupsToRemove, boolean userSaved) {
+        this.skipped = skipped;
+        this.groupsAdded = groupsAdded;
+        this.groupsRemoved = groupsRemoved;
+        this.userSaved = userSaved;
+        this.documentsWritten = groupsAdded + groupsRemoved + (userSaved ? 1 : 0);
+        // the previous synchronization already skipped groups the user was a member of, but it saved every group
+        // the user was removed from, even when the user wasn't a member anymore, and always saved the user
+        this.writesAvoided = groupsToRemove - groupsRemoved + (userSaved ? 0 : 1);
+    }
+
+    static GroupSyncResult skipped() {
+        return new GroupSyncResult(true, 0, 0, 0, false);
+    }
+
+    @Override
+    public String toString() {
+        if (skipped)
+            return String.format("group set unchanged, synchronization skipped, %d writes avoided", writesAvoided);
+        return String.format("added to %d, removed from %d groups, %d documents written, %d writes avoided",
+                groupsAdded, groupsRemoved, documentsWritten, writesAvoided);
+    }
+}
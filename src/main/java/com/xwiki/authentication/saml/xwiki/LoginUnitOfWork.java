@@ -0,0 +1,101 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.authentication.saml.xwiki;
+
+import com.xpn.xwiki.XWikiContext;
+import com.xpn.xwiki.XWikiException;
+import com.xpn.xwiki.doc.XWikiDocument;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import org.xwiki.model.reference.DocumentReference;
+
+// Documents read while processing one login, each loaded once and saved once when the login completes
+public class LoginUnitOfWork {
+    private final XWikiContext context;
+    private final Map<DocumentReference, XWikiDocument> documents = new LinkedHashMap<>();
+    private final Map<DocumentReference, XWikiDocument> dirtyDocuments = new LinkedHashMap<>();
+    private int reads;
+    private int writes;
+
+    public LoginUnitOfWork(XWikiContext context) {
+        this.context = context;
+    }
+
+    public XWikiContext getContext() {
+        return context;
+    }
+
+    public XWikiDocument getDocument(DocumentReference reference) throws XWikiException {
+        final XWikiDocument cached = documents.get(reference);
+        if (cached != null)
+            return cached;
+        return load(reference);
+    }
+
+    // for documents written behind the unit of work, like users created by XWiki#createUser
+    public XWikiDocument reload(DocumentReference reference) throws XWikiException {
+        dirtyDocuments.remove(reference);
+        return load(reference);
+    }
+
+    private XWikiDocument load(DocumentReference reference) throws XWikiException {
+        final XWikiDocument document = context.getWiki().getDocument(reference, context);
+        reads++;
+        documents.put(reference, document);
+        return document;
+    }
+
+    // a missing document is loaded as a new one, so this needs no separate store query
+    public boolean exists(DocumentReference reference) throws XWikiException {
+        return !getDocument(reference).isNew();
+    }
+
+    public void markDirty(XWikiDocument document) {
+        dirtyDocuments.put(document.getDocumentReference(), document);
+    }
+
+    // saved from their own wiki, callers may have switched the context to another one in the meantime
+    public void flush() throws XWikiException {
+        final String wikiId = context.getWikiId();
+        try {
+            for (XWikiDocument document : dirtyDocuments.values()) {
+                context.setWikiId(document.getDocumentReference().getWikiReference().getName());
+                context.getWiki().saveDocument(document, context);
+                writes++;
+            }
+            dirtyDocuments.clear();
+        } finally {
+            context.setWikiId(wikiId);
+        }
+    }
+
+    public int getReads() {
+        return reads;
+    }
+
+    public int getWrites() {
+        return writes;
+    }
+
+    @Override
+    public String toString() {
+        return "reads=" + reads + ", writes=" + writes + ", pending=" + dirtyDocuments.size();
+    }
+}
@@ -0,0 +1,71 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.authentication.saml.xwiki;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Function;
+import org.xwiki.model.reference.DocumentReference;
+
+// Resolving a user name only depends on the name and the current wiki, so entries never go stale
+public class ResolvedPrincipalCache {
+    private final int maxEntries;
+    private final ConcurrentMap<String, ResolvedPrincipal> principals = new ConcurrentHashMap<>();
+
+    public ResolvedPrincipalCache(int maxEntries) {
+        this.maxEntries = maxEntries;
+    }
+
+    public ResolvedPrincipal resolve(String userName, String wikiId, boolean mainWiki,
+                                     Function<String, DocumentReference> resolver) {
+        final ResolvedPrincipal cached = principals.get(userName);
+        if (cached != null && cached.belongsTo(wikiId))
+            return cached;
+
+        final ResolvedPrincipal principal = new ResolvedPrincipal(wikiId, resolver.apply(userName), mainWiki);
+        if (maxEntries <= 0)
+            return principal;
+        // a full clear keeps the bound without tracking recency, the cache refills from the active users
+        if (principals.size() >= maxEntries)
+            principals.clear();
+        principals.put(userName, principal);
+        return principal;
+    }
+
+    public int size() {
+        return principals.size();
+    }
+
+    public static class ResolvedPrincipal {
+        public final String wikiId;
+        public final DocumentReference userReference;
+        public final boolean mainWiki;
+
+        ResolvedPrincipal(String wikiId, DocumentReference userReference, boolean mainWiki) {
+            this.wikiId = wikiId;
+            this.userReference = userReference;
+            this.mainWiki = mainWiki;
+        }
+
+        boolean belongsTo(String wikiId) {
+            return this.wikiId == null ? wikiId == null : this.wikiId.equals(wikiId);
+        }
+    }
+}
@@ -0,0 +1,63 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.authentication.saml.xwiki;
+
+import com.xpn.xwiki.doc.XWikiDocument;
+import java.util.Collections;
+import java.util.List;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xwiki.bridge.event.DocumentDeletedEvent;
+import org.xwiki.observation.EventListener;
+import org.xwiki.observation.event.Event;
+
+// Renaming a document deletes the source document, so listening to deletions covers renames as well
+public class SamlUserDocumentListener implements EventListener {
+    public static final String NAME = "SamlUserDocumentListener";
+    private static final Logger LOG = LoggerFactory.getLogger(SamlUserDocumentListener.class);
+    private final UserReferenceCache userReferenceCache;
+
+    public SamlUserDocumentListener(UserReferenceCache userReferenceCache) {
+        this.userReferenceCache = userReferenceCache;
+    }
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public List<Event> getEvents() {
+        return Collections.singletonList(new DocumentDeletedEvent());
+    }
+
+    @Override
+    public void onEvent(Event event, Object source, Object data) {
+        final XWikiDocument document = (XWikiDocument) source;
+        // the event source is emptied by the deletion, the deleted content is on its original document
+        final XWikiDocument deletedDocument =
+                document.getOriginalDocument() == null ? document : document.getOriginalDocument();
+        if (deletedDocument.getXObject(XWikiUserManager.SAML_XCLASS) == null)
+            return;
+
+        LOG.debug("Document [{}] deleted, evicting it from the SAML user cache", document.getDocumentReference());
+        userReferenceCache.invalidate(document.getDocumentReference());
+    }
+}
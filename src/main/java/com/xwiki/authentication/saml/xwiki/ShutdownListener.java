@@ -0,0 +1,51 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.authentication.saml.xwiki;
+
+import java.util.Collections;
+import java.util.List;
+import org.xwiki.observation.EventListener;
+import org.xwiki.observation.event.ApplicationStoppedEvent;
+import org.xwiki.observation.event.Event;
+
+// Lets pending background group work complete before XWiki stops
+public class ShutdownListener implements EventListener {
+    public static final String NAME = "SamlShutdownListener";
+    private final Runnable onShutdown;
+
+    public ShutdownListener(Runnable onShutdown) {
+        this.onShutdown = onShutdown;
+    }
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public List<Event> getEvents() {
+        return Collections.singletonList(new ApplicationStoppedEvent());
+    }
+
+    @Override
+    public void onEvent(Event event, Object source, Object data) {
+        onShutdown.run();
+    }
+}
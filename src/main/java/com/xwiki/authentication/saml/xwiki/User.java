@@ -27,6 +27,7 @@ import com.xpn.xwiki.objects.BaseProperty;
 import com.xpn.xwiki.objects.classes.StringClass;
 import java.util.HashMap;
 import java.util.Map;
+import org.apache.commons.lang3.math.NumberUtils;
 import org.xwiki.model.reference.DocumentReference;
 import org.xwiki.rendering.syntax.Syntax;
 import static com.xpn.xwiki.XWikiException.ERROR_XWIKI_USER_CREATE;
@@ -37,25 +38,57 @@ public class User {
     private final String nameID;
     private final DocumentReference userReference;
     private final XWikiContext context;
-    private final XWikiDocument userDoc;
-    private final BaseObject userObj;
+    private final LoginUnitOfWork unitOfWork;
+    private XWikiDocument userDoc;
+    private BaseObject userObj;
 
-    public User(String nameID, DocumentReference userReferenceForName, XWikiContext context) throws XWikiException {
+    public User(String nameID, DocumentReference userReferenceForName, LoginUnitOfWork unitOfWork) throws XWikiException {
         this.nameID = nameID;
         this.userReference = userReferenceForName;
-        this.context = context;
-        this.userDoc = context.getWiki().getDocument(userReference, context);
+        this.context = unitOfWork.getContext();
+        this.unitOfWork = unitOfWork;
+        this.userDoc = unitOfWork.getDocument(userReference);
         this.userObj = userDoc.getXObject(XWikiUserManager.USER_XCLASS);
     }
 
-    public boolean exists() {
-        return context.getWiki().exists(userReference, context);
+    public boolean exists() throws XWikiException {
+        return unitOfWork.exists(userReference);
     }
 
     public DocumentReference getUserReference() {
         return userReference;
     }
 
+    public String getAttributesFingerprint() throws XWikiException {
+        final BaseObject samlIdObject = userDoc.getXObject(XWikiUserManager.SAML_XCLASS);
+        return samlIdObject == null ? null : getUserProperty(samlIdObject, XWikiUserManager.SAML_ATTRIBUTES_FINGERPRINT_XPROPERTY_NAME);
+    }
+
+    public boolean setAttributesFingerprint(String attributesFingerprint) {
+        final BaseObject samlIdObject = userDoc.getXObject(XWikiUserManager.SAML_XCLASS);
+        if (samlIdObject == null)
+            return false;
+
+        putStringProperty(samlIdObject, XWikiUserManager.SAML_ATTRIBUTES_FINGERPRINT_XPROPERTY_NAME, attributesFingerprint);
+        return true;
+    }
+
+    public long getAttributesReconcileTime() throws XWikiException {
+        final BaseObject samlIdObject = userDoc.getXObject(XWikiUserManager.SAML_XCLASS);
+        return samlIdObject == null ? 0L : NumberUtils.toLong(
+                getUserProperty(samlIdObject, XWikiUserManager.SAML_ATTRIBUTES_RECONCILE_TIME_XPROPERTY_NAME), 0L);
+    }
+
+    public boolean setAttributesReconcileTime(long reconcileTime) {
+        final BaseObject samlIdObject = userDoc.getXObject(XWikiUserManager.SAML_XCLASS);
+        if (samlIdObject == null)
+            return false;
+
+        putStringProperty(samlIdObject, XWikiUserManager.SAML_ATTRIBUTES_RECONCILE_TIME_XPROPERTY_NAME,
+                String.valueOf(reconcileTime));
+        return true;
+    }
+
     public String getFieldValue(String field) throws XWikiException {
         return getUserProperty(userObj, field);
     }
@@ -70,8 +103,9 @@ public class User {
         return (prop == null || prop.getValue() == null) ? null : prop.getValue().toString();
     }
 
-    public void save() throws XWikiException {
-        context.getWiki().saveDocument(userDoc, context);
+    // written when the login unit of work is flushed, together with the group synchronization changes
+    public void save() {
+        unitOfWork.markDirty(userDoc);
     }
 
     public void createUserWithAttributes(Map<String, String> xwikiAttributes)
@@ -96,16 +130,25 @@ public class User {
                     ERROR_XWIKI_USER_CREATE,
                     "XWiki failed to create user [" + nameID + "]. Error code [" + result + "]");
 
-        associateSamlUserWithXwikiUser();
+        // createUser saved its own copy of the document, the one loaded before doesn't hold the user object
+        userDoc = unitOfWork.reload(userReference);
+        userObj = userDoc.getXObject(XWikiUserManager.USER_XCLASS);
+        associateSamlUserWithXwikiUser(xwikiAttributes);
     }
 
-    private void associateSamlUserWithXwikiUser() throws XWikiException {
+    private void associateSamlUserWithXwikiUser(Map<String, String> xwikiAttributes) {
         final BaseObject samlIdObject = userDoc.newXObject(XWikiUserManager.SAML_XCLASS, context);
-        @SuppressWarnings("rawtypes")
-        final BaseProperty samlIdProp = new StringClass().fromString(nameID);
-        samlIdProp.setOwnerDocument(samlIdObject.getOwnerDocument());
-        samlIdObject.safeput(XWikiUserManager.SAML_ID_XPROPERTY_NAME, samlIdProp);
+        putStringProperty(samlIdObject, XWikiUserManager.SAML_ID_XPROPERTY_NAME, nameID);
+        putStringProperty(samlIdObject, XWikiUserManager.SAML_ATTRIBUTES_FINGERPRINT_XPROPERTY_NAME,
+                Fingerprint.of(xwikiAttributes));
 
         save();
     }
+
+    private static void putStringProperty(BaseObject samlIdObject, String propertyName, String value) {
+        @SuppressWarnings("rawtypes")
+        final BaseProperty prop = new StringClass().fromString(value);
+        prop.setOwnerDocument(samlIdObject.getOwnerDocument());
+        samlIdObject.safeput(propertyName, prop);
+    }
 }
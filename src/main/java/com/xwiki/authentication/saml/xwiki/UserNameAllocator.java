@@ -0,0 +1,116 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.authentication.saml.xwiki;
+
+import com.xpn.xwiki.XWikiContext;
+import com.xpn.xwiki.XWikiException;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xwiki.model.reference.DocumentReference;
+
+import static java.util.Arrays.asList;
+
+// Hands out Name, Name1, Name2... like XWiki.getUniquePageName, but keeps the highest suffix used per base name
+// instead of probing the store once per candidate. The index of a base name is built with a single query.
+public class UserNameAllocator {
+    private static final Logger LOG = LoggerFactory.getLogger(UserNameAllocator.class);
+    private static final int MAX_ATTEMPTS = 3;
+    private static final int NO_SUFFIX = 0;
+    private static final int BASE_NAME_FREE = -1;
+    private final String space;
+    private final Map<String, AtomicInteger> highestSuffixByBaseName;
+
+    public UserNameAllocator(String space, int maxBaseNames) {
+        this.space = space;
+        this.highestSuffixByBaseName = new LinkedHashMap<String, AtomicInteger>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, AtomicInteger> eldest) {
+                return size() > maxBaseNames;
+            }
+        };
+    }
+
+    public String allocate(String baseName, XWikiContext context) throws XWikiException {
+        final String indexKey = context.getWikiId() + ":" + baseName;
+        for (int attempt = 0; attempt < MAX_ATTEMPTS; attempt++) {
+            final String candidate = nameWithSuffix(baseName, highestSuffixFor(indexKey, baseName, context).incrementAndGet());
+            // the index misses documents created by other nodes or by hand, a single check catches them
+            if (!context.getWiki().exists(new DocumentReference(context.getWikiId(), space, candidate), context))
+                return candidate;
+
+            LOG.debug("User name [{}] was taken behind the allocator's back, reloading [{}]", candidate, baseName);
+            forget(indexKey);
+        }
+        return context.getWiki().getUniquePageName(space, baseName, context);
+    }
+
+    private AtomicInteger highestSuffixFor(String indexKey, String baseName, XWikiContext context) throws XWikiException {
+        synchronized (highestSuffixByBaseName) {
+            final AtomicInteger highestSuffix = highestSuffixByBaseName.get(indexKey);
+            if (highestSuffix != null)
+                return highestSuffix;
+        }
+        final int loadedSuffix = loadHighestSuffix(baseName, context);
+        synchronized (highestSuffixByBaseName) {
+            final AtomicInteger highestSuffix =
+                    highestSuffixByBaseName.computeIfAbsent(indexKey, key -> new AtomicInteger(loadedSuffix));
+            highestSuffix.accumulateAndGet(loadedSuffix, Math::max);
+            return highestSuffix;
+        }
+    }
+
+    private void forget(String indexKey) {
+        synchronized (highestSuffixByBaseName) {
+            highestSuffixByBaseName.remove(indexKey);
+        }
+    }
+
+    private int loadHighestSuffix(String baseName, XWikiContext context) throws XWikiException {
+        final String sql = "SELECT doc.name FROM XWikiDocument AS doc WHERE doc.space = ?1 AND doc.name LIKE ?2";
+        final List<String> names = context.getWiki().getStore().search(sql, 0, 0,
+                asList(space, baseName + "%"), context);
+
+        int highestSuffix = BASE_NAME_FREE;
+        for (String name : names)
+            highestSuffix = Math.max(highestSuffix, suffixOf(baseName, name));
+        return highestSuffix;
+    }
+
+    // the LIKE pattern also matches names like JohnDoeSmith, only digits after the base name count
+    private static int suffixOf(String baseName, String name) {
+        if (name == null || !name.startsWith(baseName))
+            return BASE_NAME_FREE;
+        if (name.length() == baseName.length())
+            return NO_SUFFIX;
+
+        final String suffix = name.substring(baseName.length());
+        if (suffix.length() > 9 || !suffix.chars().allMatch(Character::isDigit))
+            return BASE_NAME_FREE;
+        return Integer.parseInt(suffix);
+    }
+
+    private static String nameWithSuffix(String baseName, int suffix) {
+        return suffix == NO_SUFFIX ? baseName : baseName + suffix;
+    }
+}
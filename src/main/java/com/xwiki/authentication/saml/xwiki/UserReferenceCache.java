@@ -0,0 +1,134 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.authentication.saml.xwiki;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+import org.xwiki.model.reference.DocumentReference;
+
+public class UserReferenceCache {
+    private final int maxEntries;
+    private final long ttlMillis;
+    private final LongSupplier clock;
+    private final Map<String, CachedReference> entries;
+    // the NameIDs cached for each user, so invalidating a user doesn't scan every entry
+    private final Map<DocumentReference, Set<String>> nameIDsByReference = new HashMap<>();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    public UserReferenceCache(int maxEntries, long ttlMillis) {
+        this(maxEntries, ttlMillis, System::currentTimeMillis);
+    }
+
+    UserReferenceCache(int maxEntries, long ttlMillis, LongSupplier clock) {
+        this.maxEntries = maxEntries;
+        this.ttlMillis = ttlMillis;
+        this.clock = clock;
+        this.entries = new LinkedHashMap<String, CachedReference>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CachedReference> eldest) {
+                if (size() <= UserReferenceCache.this.maxEntries)
+                    return false;
+                unindex(eldest.getKey(), eldest.getValue());
+                return true;
+            }
+        };
+    }
+
+    public synchronized Optional<DocumentReference> get(String nameID) {
+        final CachedReference cached = entries.get(nameID);
+        if (cached == null || cached.isExpired(clock.getAsLong())) {
+            if (cached != null) {
+                entries.remove(nameID);
+                unindex(nameID, cached);
+            }
+            misses.incrementAndGet();
+            return Optional.empty();
+        }
+        hits.incrementAndGet();
+        return Optional.of(cached.userReference);
+    }
+
+    public synchronized void put(String nameID, DocumentReference userReference) {
+        if (maxEntries <= 0)
+            return;
+        final DocumentReference reference = withoutLocale(userReference);
+        final CachedReference previous = entries.put(nameID,
+                new CachedReference(reference, clock.getAsLong() + ttlMillis));
+        if (previous != null)
+            unindex(nameID, previous);
+        nameIDsByReference.computeIfAbsent(reference, key -> new HashSet<>()).add(nameID);
+    }
+
+    public synchronized void invalidate(DocumentReference userReference) {
+        final Set<String> nameIDs = nameIDsByReference.remove(withoutLocale(userReference));
+        if (nameIDs != null)
+            for (String nameID : nameIDs)
+                entries.remove(nameID);
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+        nameIDsByReference.clear();
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    private void unindex(String nameID, CachedReference cached) {
+        final Set<String> nameIDs = nameIDsByReference.get(cached.userReference);
+        if (nameIDs != null && nameIDs.remove(nameID) && nameIDs.isEmpty())
+            nameIDsByReference.remove(cached.userReference);
+    }
+
+    private static DocumentReference withoutLocale(DocumentReference reference) {
+        return reference.getLocale() == null ? reference : new DocumentReference(reference, (Locale) null);
+    }
+
+    private static class CachedReference {
+        private final DocumentReference userReference;
+        private final long expiresAt;
+
+        CachedReference(DocumentReference userReference, long expiresAt) {
+            this.userReference = userReference;
+            this.expiresAt = expiresAt;
+        }
+
+        boolean isExpired(long now) {
+            return now >= expiresAt;
+        }
+    }
+}
@@ -21,24 +21,78 @@ package com.xwiki.authentication.saml.xwiki;
 
 import com.xpn.xwiki.XWikiContext;
 import com.xpn.xwiki.XWikiException;
+import com.xwiki.authentication.saml.metrics.LatencyHistogram;
+import java.util.Map;
+import java.util.concurrent.locks.Lock;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.xwiki.model.reference.DocumentReference;
 import org.xwiki.model.reference.DocumentReferenceResolver;
 import org.xwiki.text.StringUtils;
 
 public class XWikiGroupManager {
     private static final Logger LOG = LoggerFactory.getLogger(XWikiGroupManager.class);
+    private static final int GROUP_LOCK_STRIPES = 64;
     private final DocumentReferenceResolver<String> groupResolver;
+    private final StripedLocks groupLocks = new StripedLocks(GROUP_LOCK_STRIPES);
+    private final GroupMembershipIndex membershipIndex = new GroupMembershipIndex();
+    private final GroupMembershipWriter membershipWriter;
+    private final LatencyHistogram groupSaveLatency = new LatencyHistogram();
 
     public XWikiGroupManager(DocumentReferenceResolver<String> groupResolver) {
+        this(groupResolver, 0, 0);
+    }
+
+    public XWikiGroupManager(DocumentReferenceResolver<String> groupResolver, long writeIntervalMillis, int writeBatchSize) {
         this.groupResolver = groupResolver;
+        this.membershipWriter = new GroupMembershipWriter(writeIntervalMillis, writeBatchSize, groupLocks,
+                this::writeMembershipChanges);
+    }
+
+    public boolean addUserToGroup(String xwikiUserName, String groupName, XWikiContext context) throws XWikiException {
+        return new XWikiGroupManagerWithContext(context).addUserToGroup(xwikiUserName, groupName);
+    }
+    public boolean removeUserFromGroup(String xwikiUserName, String groupName, XWikiContext context) throws XWikiException {
+        return new XWikiGroupManagerWithContext(context).removeUserFromGroup(xwikiUserName, groupName, context);
+    }
+
+    public GroupMembershipIndex getMembershipIndex() {
+        return membershipIndex;
+    }
+
+    public GroupMembershipWriter getMembershipWriter() {
+        return membershipWriter;
+    }
+
+    public LatencyHistogram getGroupSaveLatency() {
+        return groupSaveLatency;
     }
 
-    public synchronized void addUserToGroup(String xwikiUserName, String groupName, XWikiContext context) throws XWikiException {
-        new XWikiGroupManagerWithContext(context).addUserToGroup(xwikiUserName, groupName);
+    private void save(Group group) throws XWikiException {
+        final long start = System.nanoTime();
+        group.save();
+        groupSaveLatency.recordSince(start);
     }
-    public synchronized void removeUserFromGroup(String xwikiUserName, String groupName, XWikiContext context) throws XWikiException {
-        new XWikiGroupManagerWithContext(context).removeUserFromGroup(xwikiUserName, groupName, context);
+
+    private void writeMembershipChanges(DocumentReference groupReference, Map<String, Boolean> membershipChanges,
+                                        XWikiContext context) throws XWikiException {
+        final Group group = new Group(groupReference, context, membershipIndex);
+        int changed = 0;
+        for (Map.Entry<String, Boolean> change : membershipChanges.entrySet()) {
+            final String member = change.getKey();
+            if (change.getValue() && !group.hasMember(member)) {
+                group.addMember(member);
+                changed++;
+            } else if (!change.getValue() && group.removeUser(member))
+                changed++;
+        }
+        if (changed == 0)
+            return;
+
+        if (group.isNew())
+            group.setupNewGroupDocument();
+        save(group);
+        LOG.info("Saved group [{}] with {} membership changes", groupReference, changed);
     }
 
     class XWikiGroupManagerWithContext {
@@ -48,48 +102,80 @@ public class XWikiGroupManager {
             this.context = context;
         }
 
-        private Group makeGroupDocument(String groupName, XWikiContext context) throws XWikiException {
-            return new Group(groupName, context, groupResolver);
+        private Group makeGroupDocument(DocumentReference groupReference, XWikiContext context) throws XWikiException {
+            return new Group(groupReference, context, membershipIndex);
         }
 
-        protected synchronized void addUserToGroup(String xwikiUserName, String groupName) throws XWikiException {
+        protected boolean addUserToGroup(String xwikiUserName, String groupName) throws XWikiException {
+            if (StringUtils.isBlank(groupName)) {
+                LOG.warn("Tried to add user [{}] to group with empty name. Ignoring", xwikiUserName);
+                return false;
+            }
+            final DocumentReference groupReference = Group.getGroupReferenceForName(groupName, groupResolver);
+            final Lock groupLock = groupLocks.lockFor(groupReference);
+            groupLock.lock();
             try {
-                if (StringUtils.isBlank(groupName)) {
-                    LOG.warn("Tried to add user [{}] to group with empty name. Ignoring", xwikiUserName);
-                    return;
-                }
                 LOG.debug("Adding user [{}] to xwiki group [{}]", xwikiUserName, groupName);
-                final Group group = makeGroupDocument(groupName, context);
+                if (membershipWriter.isEnabled())
+                    return queueMembershipChange(groupReference, xwikiUserName, true);
+
+                final Group group = makeGroupDocument(groupReference, context);
 
                 if (group.hasMember(xwikiUserName))
-                    return;
+                    return false;
 
                 group.addMember(xwikiUserName);
 
                 if (group.isNew())
                     group.setupNewGroupDocument();
 
-                group.save();
+                save(group);
 
                 LOG.info("Finished adding user [{}] to xwiki group [{}]", xwikiUserName, groupName);
+                return true;
             } catch (XWikiException e) {
                 LOG.error("Failed to add user [{}] to group [{}]", xwikiUserName, groupName, e);
                 throw e;
+            } finally {
+                groupLock.unlock();
             }
         }
 
-        protected synchronized void removeUserFromGroup(String xwikiUserName, String groupName, XWikiContext context) throws XWikiException {
+        // must be called with the group lock held; a change already queued for the user wins over the document
+        private boolean queueMembershipChange(DocumentReference groupReference, String xwikiUserName, boolean isMember)
+                throws XWikiException {
+            if (!membershipWriter.hasPendingChange(groupReference, xwikiUserName)
+                    && makeGroupDocument(groupReference, context).hasMember(xwikiUserName) == isMember)
+                return false;
+
+            membershipWriter.queue(groupReference, xwikiUserName, isMember, context);
+            return true;
+        }
+
+        protected boolean removeUserFromGroup(String xwikiUserName, String groupName, XWikiContext context) throws XWikiException {
+            if (StringUtils.isBlank(groupName)) {
+                LOG.warn("Tried to remove user [{}] from empty group. Ignoring", xwikiUserName);
+                return false;
+            }
+            final DocumentReference groupReference = Group.getGroupReferenceForName(groupName, groupResolver);
+            final Lock groupLock = groupLocks.lockFor(groupReference);
+            groupLock.lock();
             try {
-                if (StringUtils.isBlank(groupName)) {
-                    LOG.warn("Tried to remove user [{}] from empty group. Ignoring", xwikiUserName);
-                    return;
-                }
-                final Group group = makeGroupDocument(groupName, context);
-                group.removeUser(xwikiUserName);
-                group.save();
+                if (membershipWriter.isEnabled())
+                    return queueMembershipChange(groupReference, xwikiUserName, false);
+
+                final Group group = makeGroupDocument(groupReference, context);
+                if (!group.removeUser(xwikiUserName))
+                    return false;
+
+                save(group);
+                LOG.info("Finished removing user [{}] from xwiki group [{}]", xwikiUserName, groupName);
+                return true;
             } catch (XWikiException e) {
                 LOG.error("Failed to remove a user from a group [{}] group: [{}]", xwikiUserName, groupName, e);
                 throw e;
+            } finally {
+                groupLock.unlock();
             }
         }
     }
@@ -23,55 +23,121 @@ import com.xpn.xwiki.XWikiContext;
 import com.xpn.xwiki.XWikiException;
 import com.xpn.xwiki.doc.XWikiDocument;
 import com.xpn.xwiki.objects.BaseObject;
+import com.xpn.xwiki.objects.DBStringListProperty;
+import com.xpn.xwiki.objects.ListProperty;
 import com.xpn.xwiki.objects.StringProperty;
 import com.xpn.xwiki.objects.classes.StringClass;
 import com.xwiki.authentication.saml.samlauth.Saml2XWikiAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
 import java.util.Optional;
 import java.util.Set;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.math.NumberUtils;
 import org.xwiki.model.reference.DocumentReference;
-import static org.apache.commons.compress.utils.Sets.newHashSet;
+import static org.apache.commons.lang3.StringUtils.defaultString;
 
 public class XWikiUserGroupSynchronizer {
     private static final String PROPERTY_TO_STORE_SAML_MANAGED_GROUPS = "SamlManagedGroups";
+    private static final String PROPERTY_TO_STORE_SAML_GROUPS_FINGERPRINT = "SamlManagedGroupsFingerprint";
+    private static final String PROPERTY_TO_STORE_SAML_GROUPS_RECONCILE_TIME = "SamlManagedGroupsReconciledAt";
     private final XWikiGroupManager groupManager;
     private final XWikiContext context;
+    private final GroupSyncPolicy syncPolicy;
 
-    public XWikiUserGroupSynchronizer(XWikiGroupManager groupManager, XWikiContext context) {
+    public XWikiUserGroupSynchronizer(XWikiGroupManager groupManager, XWikiContext context, GroupSyncPolicy syncPolicy) {
         this.groupManager = groupManager;
         this.context = context;
+        this.syncPolicy = syncPolicy;
     }
 
-    public void syncUserGroups(DocumentReference userReference, Saml2XWikiAttributes attributes) throws XWikiException {
-        final XWikiDocument userDoc = context.getWiki().getDocument(userReference, context);
+    public GroupSyncResult syncUserGroups(DocumentReference userReference, Saml2XWikiAttributes attributes) throws XWikiException {
+        final LoginUnitOfWork unitOfWork = new LoginUnitOfWork(context);
+        final GroupSyncResult result = syncUserGroups(userReference, attributes, unitOfWork);
+        unitOfWork.flush();
+        return result;
+    }
+
+    // the user document comes from the unit of work, so it is read and saved once per login along with its fields;
+    // group documents are still written right away, under their group lock
+    public GroupSyncResult syncUserGroups(DocumentReference userReference, Saml2XWikiAttributes attributes,
+                                          LoginUnitOfWork unitOfWork) throws XWikiException {
+        final XWikiDocument userDoc = unitOfWork.getDocument(userReference);
         final BaseObject userObj = userDoc.getXObject(XWikiUserManager.USER_XCLASS);
 
-        removeUserFromGroupsMissingInSamlGroups(userReference, userObj, attributes);
+        final Set<String> samlGroups = attributes.groupsFromSaml;
+        final String samlGroupsFingerprint = Fingerprint.of(samlGroups);
+        final String previousFingerprint = getStringProperty(userObj, PROPERTY_TO_STORE_SAML_GROUPS_FINGERPRINT);
+        if (samlGroupsFingerprint.equals(previousFingerprint) && !syncPolicy.isReconcileDue(getLastReconcileTime(userObj)))
+            return GroupSyncResult.skipped();
+
+        final Set<String> previousManagedGroups = getPreviousManagedGroups(userObj);
+        final Set<String> groupsToRemove = new LinkedHashSet<>(previousManagedGroups);
+        groupsToRemove.removeAll(samlGroups);
+
+        final String xwikiUserName = userReference.getName();
+        int groupsRemoved = 0;
+        for (String group: groupsToRemove)
+            if (groupManager.removeUserFromGroup(xwikiUserName, group, context))
+                groupsRemoved++;
+
+        int groupsAdded = 0;
+        for (String group: samlGroups)
+            if (groupManager.addUserToGroup(xwikiUserName, group, context))
+                groupsAdded++;
+
+        final boolean userSaved = !previousManagedGroups.equals(samlGroups)
+                || !samlGroupsFingerprint.equals(previousFingerprint)
+                || syncPolicy.tracksReconcileTime();
+        if (userSaved) {
+            updateUserGroups(userObj, samlGroups, samlGroupsFingerprint);
+            unitOfWork.markDirty(userDoc);
+        }
 
-        addUserToGroupsInSamlGroups(userReference, attributes);
+        return new GroupSyncResult(groupsAdded, groupsRemoved, groupsToRemove.size(), userSaved);
+    }
+
+    private Set<String> getPreviousManagedGroups(BaseObject userObj) {
+        final Object samlManagedGroups = userObj.get(PROPERTY_TO_STORE_SAML_MANAGED_GROUPS);
+        if (samlManagedGroups instanceof ListProperty)
+            return nonBlankGroups(((ListProperty) samlManagedGroups).getList());
+
+        // Managed groups used to be stored as a comma separated string
+        if (samlManagedGroups instanceof StringProperty)
+            return nonBlankGroups(Arrays.asList(defaultString(((StringProperty) samlManagedGroups).getValue()).split(",")));
 
-        saveUserWithUpdatedGroups(userDoc, userObj, attributes);
+        return Collections.emptySet();
     }
 
-    private void removeUserFromGroupsMissingInSamlGroups(
-            DocumentReference userReference,
-            BaseObject userObj,
-            Saml2XWikiAttributes attributes)
-            throws XWikiException {
-
-        final Optional<StringProperty> samlManagedGroupsProp = Optional.ofNullable((StringProperty) userObj.get(PROPERTY_TO_STORE_SAML_MANAGED_GROUPS));
-        final Set<String> previousManagedGroups = newHashSet(samlManagedGroupsProp.map(StringProperty::getValue).orElse("").split(","));
-        previousManagedGroups.removeAll(attributes.groupsFromSaml);
-        for (String group: previousManagedGroups)
-            groupManager.removeUserFromGroup(userReference.getName(), group, context);
+    private long getLastReconcileTime(BaseObject userObj) {
+        return NumberUtils.toLong(getStringProperty(userObj, PROPERTY_TO_STORE_SAML_GROUPS_RECONCILE_TIME), 0L);
     }
 
-    private void addUserToGroupsInSamlGroups(DocumentReference userReference, Saml2XWikiAttributes attributes) throws XWikiException {
-        for (String group: attributes.groupsFromSaml)
-            groupManager.addUserToGroup(userReference.getName(), group, context);
+    private static String getStringProperty(BaseObject userObj, String propertyName) {
+        return Optional.ofNullable((StringProperty) userObj.get(propertyName)).map(StringProperty::getValue).orElse(null);
     }
 
-    private void saveUserWithUpdatedGroups(XWikiDocument userDoc, BaseObject userObj, Saml2XWikiAttributes attributes) throws XWikiException {
-        userObj.put(PROPERTY_TO_STORE_SAML_MANAGED_GROUPS, new StringClass().fromString(String.join(",", attributes.groupsFromSaml)));
-        context.getWiki().saveDocument(userDoc, context);
+    private static Set<String> nonBlankGroups(Collection<String> groups) {
+        final Set<String> nonBlankGroups = new LinkedHashSet<>();
+        for (String group: groups)
+            if (StringUtils.isNotBlank(group))
+                nonBlankGroups.add(group);
+        return nonBlankGroups;
+    }
+
+    private void updateUserGroups(BaseObject userObj, Set<String> samlGroups, String samlGroupsFingerprint) {
+        if (userObj.get(PROPERTY_TO_STORE_SAML_MANAGED_GROUPS) instanceof StringProperty)
+            userObj.removeField(PROPERTY_TO_STORE_SAML_MANAGED_GROUPS);
+
+        final DBStringListProperty managedGroups = new DBStringListProperty();
+        managedGroups.setName(PROPERTY_TO_STORE_SAML_MANAGED_GROUPS);
+        managedGroups.setList(new ArrayList<>(samlGroups));
+        userObj.put(PROPERTY_TO_STORE_SAML_MANAGED_GROUPS, managedGroups);
+        userObj.put(PROPERTY_TO_STORE_SAML_GROUPS_FINGERPRINT, new StringClass().fromString(samlGroupsFingerprint));
+        if (syncPolicy.tracksReconcileTime())
+            userObj.put(PROPERTY_TO_STORE_SAML_GROUPS_RECONCILE_TIME, new StringClass().fromString(String.valueOf(syncPolicy.now())));
     }
 }
@@ -22,12 +22,15 @@ package com.xwiki.authentication.saml.xwiki;
 import com.xpn.xwiki.XWiki;
 import com.xpn.xwiki.XWikiContext;
 import com.xpn.xwiki.XWikiException;
+import com.xwiki.authentication.saml.metrics.LoginMetrics;
+import com.xwiki.authentication.saml.metrics.LoginPhase;
 import com.xwiki.authentication.saml.samlauth.SamlAuthConfig;
 import com.xwiki.authentication.saml.samlauth.Saml2XWikiAttributes;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Optional;
+import java.util.concurrent.locks.Lock;
 import org.apache.commons.lang3.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -48,30 +51,68 @@ public class XWikiUserManager {
             new EntityReference(XWiki.SYSTEM_SPACE, EntityType.SPACE));
     public static final EntityReference USER_XCLASS = PROFILE_PARENT;
     public static final String SAML_ID_XPROPERTY_NAME = "nameid";
+    public static final String SAML_ATTRIBUTES_FINGERPRINT_XPROPERTY_NAME = "attributesfingerprint";
+    public static final String SAML_ATTRIBUTES_RECONCILE_TIME_XPROPERTY_NAME = "attributesreconciledat";
     private static final Logger LOG = LoggerFactory.getLogger(XWikiUserManager.class);
+    private static final int USER_LOCK_STRIPES = 64;
+    private static final int ALLOCATED_USER_BASE_NAMES = 10000;
     private final SamlAuthConfig authConfig;
     private final EntityReferenceSerializer<String> compactStringEntityReferenceSerializer;
     private final DocumentReferenceResolver<String> currentMixedDocumentReferenceResolver;
+    private final UserReferenceCache userReferenceCache;
+    private final LoginMetrics loginMetrics;
+    private final GroupSyncPolicy syncPolicy;
+    private final StripedLocks userLocks = new StripedLocks(USER_LOCK_STRIPES);
+    private final UserNameAllocator userNameAllocator = new UserNameAllocator(XWiki.SYSTEM_SPACE, ALLOCATED_USER_BASE_NAMES);
 
     public XWikiUserManager(SamlAuthConfig authConfig,
                             EntityReferenceSerializer<String> compactStringEntityReferenceSerializer,
-                            DocumentReferenceResolver<String> currentMixedDocumentReferenceResolver) {
+                            DocumentReferenceResolver<String> currentMixedDocumentReferenceResolver,
+                            UserReferenceCache userReferenceCache,
+                            LoginMetrics loginMetrics) {
+        this(authConfig, compactStringEntityReferenceSerializer, currentMixedDocumentReferenceResolver,
+                userReferenceCache, loginMetrics, GroupSyncPolicy.from(authConfig));
+    }
+
+    XWikiUserManager(SamlAuthConfig authConfig,
+                     EntityReferenceSerializer<String> compactStringEntityReferenceSerializer,
+                     DocumentReferenceResolver<String> currentMixedDocumentReferenceResolver,
+                     UserReferenceCache userReferenceCache,
+                     LoginMetrics loginMetrics,
+                     GroupSyncPolicy syncPolicy) {
         this.authConfig = authConfig;
         this.compactStringEntityReferenceSerializer = compactStringEntityReferenceSerializer;
         this.currentMixedDocumentReferenceResolver = currentMixedDocumentReferenceResolver;
+        this.userReferenceCache = userReferenceCache;
+        this.loginMetrics = loginMetrics;
+        this.syncPolicy = syncPolicy;
     }
 
-    public DocumentReference getOrCreateUserIfNeeded(XWikiContext context, Saml2XWikiAttributes attributes) throws XWikiException {
-        return new UserManagerWithContextAndAttributes(context, attributes).getOrCreateUserIfNeeded();
+    // Two requests with the same NameID would both miss the lookup and create two accounts, so lookup and creation
+    // are serialized per NameID while different identities still proceed in parallel. Changes to an existing user
+    // document are left in the unit of work for the caller to flush, a new user is saved before the lock is released
+    public DocumentReference getOrCreateUserIfNeeded(LoginUnitOfWork unitOfWork, Saml2XWikiAttributes attributes) throws XWikiException {
+        final Lock userLock = userLocks.lockFor(attributes.nameID);
+        userLock.lock();
+        try {
+            return new UserManagerWithContextAndAttributes(unitOfWork, attributes).getOrCreateUserIfNeeded();
+        } finally {
+            userLock.unlock();
+        }
     }
 
     class UserManagerWithContextAndAttributes {
         private final XWikiContext context;
+        private final LoginUnitOfWork unitOfWork;
         private final Saml2XWikiAttributes attributes;
+        private final String cacheKey;
 
-        public UserManagerWithContextAndAttributes(XWikiContext context, Saml2XWikiAttributes attributes) {
-            this.context = context;
+        public UserManagerWithContextAndAttributes(LoginUnitOfWork unitOfWork, Saml2XWikiAttributes attributes) {
+            this.context = unitOfWork.getContext();
+            this.unitOfWork = unitOfWork;
             this.attributes = attributes;
+            // lookups run against the current wiki, so the same NameID may resolve differently per wiki
+            this.cacheKey = context.getWikiId() + ":" + attributes.nameID;
         }
 
         public DocumentReference getOrCreateUserIfNeeded() throws XWikiException {
@@ -96,7 +137,15 @@ public class XWikiUserManager {
         private DocumentReference createUserWithAttributes(User user, Saml2XWikiAttributes attributes) throws XWikiException {
             LOG.info("Will create new user [{}]", user);
 
+            final long start = System.nanoTime();
             user.createUserWithAttributes(attributes.xwikiAttributes);
+            if (syncPolicy.tracksReconcileTime())
+                user.setAttributesReconcileTime(syncPolicy.now());
+            // the NameID object must be stored before the lock is released, otherwise another login with the same
+            // NameID misses it in findUser and creates a second account
+            unitOfWork.flush();
+            loginMetrics.record(LoginPhase.CREATE_USER, start);
+            userReferenceCache.put(cacheKey, user.getUserReference());
 
             LOG.info("User [{}] has been successfully created", user);
             return user.getUserReference();
@@ -104,16 +153,26 @@ public class XWikiUserManager {
 
         private User getXWikiUserByNameID(String nameID)
                 throws XWikiException{
+            final Optional<DocumentReference> cachedUserReference = userReferenceCache.get(cacheKey);
+            if (cachedUserReference.isPresent()) {
+                LOG.debug("Found XWiki User [{}] in cache", cachedUserReference.get());
+                return new User(nameID, cachedUserReference.get(), unitOfWork);
+            }
+
+            final long start = System.nanoTime();
             final Optional<String> validUserName = findUser(nameID);
+            loginMetrics.record(LoginPhase.FIND_USER, start);
 
             if (validUserName.isPresent()) {
                 LOG.debug("Found XWiki User [{}]", validUserName.get());
-                return new User(nameID, getUserReferenceForName(validUserName.get()), context);
+                final DocumentReference userReference = getUserReferenceForName(validUserName.get());
+                userReferenceCache.put(cacheKey, userReference);
+                return new User(nameID, userReference, unitOfWork);
             }
             final String generatedUserName = generateValidUserName(nameID);
             LOG.debug("Generated XWiki User [{}]", generatedUserName);
 
-            return new User(nameID, getUserReferenceForName(generatedUserName), context);
+            return new User(nameID, getUserReferenceForName(generatedUserName), unitOfWork);
         }
 
         private Optional<String> findUser(String nameID) throws XWikiException {
@@ -160,7 +219,7 @@ public class XWikiUserManager {
                         ERROR_XWIKI_USER_CREATE,
                         "Could not generate a username for user " + nameID);
 
-            validUserName = context.getWiki().getUniquePageName("XWiki", userName, context);
+            validUserName = userNameAllocator.allocate(userName, context);
             LOG.debug("Generated XWiki User Name [{}]", validUserName);
             return validUserName;
         }
@@ -184,6 +243,14 @@ public class XWikiUserManager {
         private void syncUserFields(User user)
                 throws XWikiException {
 
+            final String attributesFingerprint = Fingerprint.of(attributes.xwikiAttributes);
+            final boolean attributesChanged = !attributesFingerprint.equals(user.getAttributesFingerprint());
+            // like group memberships, fields edited in XWiki are only restored when a reconcile is due
+            if (!attributesChanged && !syncPolicy.isReconcileDue(user.getAttributesReconcileTime())) {
+                LOG.debug("User [{}] attributes unchanged since last login", user.getUserReference());
+                return;
+            }
+
             boolean updated = false;
 
             for (Map.Entry<String, String> entry : attributes.xwikiAttributes.entrySet()) {
@@ -197,10 +264,14 @@ public class XWikiUserManager {
                 updated = true;
             }
 
-            if (updated) {
+            // saved even when no field changed, so the next login with the same attributes skips the comparison
+            boolean samlObjectUpdated = attributesChanged && user.setAttributesFingerprint(attributesFingerprint);
+            if (syncPolicy.tracksReconcileTime())
+                samlObjectUpdated |= user.setAttributesReconcileTime(syncPolicy.now());
+            if (updated || samlObjectUpdated)
                 user.save();
+            if (updated)
                 LOG.info("User [{}] has been successfully updated", user.getUserReference());
-            }
         }
     }
 }
@@ -0,0 +1,118 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.authentication.saml;
+
+import com.onelogin.saml2.Auth;
+import com.onelogin.saml2.settings.Saml2Settings;
+import com.onelogin.saml2.settings.SettingsBuilder;
+import com.xpn.xwiki.XWikiContext;
+import com.xpn.xwiki.user.api.XWikiUser;
+import com.xpn.xwiki.web.XWikiRequest;
+import com.xpn.xwiki.web.XWikiResponse;
+import com.xwiki.authentication.saml.onelogin.OneLoginAuth;
+import com.xwiki.authentication.saml.samlauth.AuthnRequestBuilder;
+import com.xwiki.authentication.saml.samlauth.RequestClassifier;
+import java.util.Properties;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.startsWith;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class NonAuthenticatedAccessHandlerTest {
+    private final XWikiContext context = new XWikiContext();
+    private final XWikiRequest request = mock(XWikiRequest.class);
+    private final XWikiResponse response = mock(XWikiResponse.class);
+    private final OneLoginAuth loginAuthFactory = mock(OneLoginAuth.class);
+    private final NonAuthenticatedAccessHandler handler = new NonAuthenticatedAccessHandler(context, loginAuthFactory,
+            null, RequestClassifier.compile(new String[]{"path:/rest/->anonymous"}), null);
+
+    public NonAuthenticatedAccessHandlerTest() {
+        context.setRequest(request);
+        context.setResponse(response);
+        context.setAction("view");
+        when(request.getContextPath()).thenReturn("/xwiki");
+        when(request.getRequestURI()).thenReturn("/xwiki/rest/wikis/xwiki/spaces");
+    }
+
+    @Test
+    public void whenAnonymousPathCarriesCredentials_ShouldAuthenticateWithTheDefaultHandler() throws Exception {
+        final XWikiUser restClient = mock(XWikiUser.class);
+
+        assertSame(restClient, handler.handle(() -> restClient));
+
+        verify(loginAuthFactory, never()).produce(any(), any(), any());
+    }
+
+    @Test
+    public void whenAnonymousPathCarriesNoCredentials_ShouldServeItAsGuestWithoutRedirecting() throws Exception {
+        assertNull(handler.handle(() -> null));
+
+        verify(response, never()).sendRedirect(anyString());
+        verify(loginAuthFactory, never()).produce(any(), any(), any());
+    }
+
+    @Test
+    public void whenPrecomputedAuthnRequestsAreEnabled_ShouldRedirectWithoutTheToolkit() throws Exception {
+        final Saml2Settings settings = settings(new Properties());
+
+        samlRedirectHandler(settings).handle(() -> null);
+
+        verify(response).sendRedirect(startsWith("https://idp.example.com/sso?SAMLRequest="));
+        verify(loginAuthFactory, never()).produce(any(), any(), any());
+    }
+
+    @Test
+    public void whenAuthnRequestsAreSigned_ShouldLetTheToolkitRedirect() throws Exception {
+        final Properties properties = new Properties();
+        properties.put("onelogin.saml2.security.authnrequest_signed", "true");
+        final Saml2Settings settings = settings(properties);
+        final Auth auth = mock(Auth.class);
+        when(loginAuthFactory.produce(settings, request, response)).thenReturn(auth);
+
+        samlRedirectHandler(settings).handle(() -> null);
+
+        verify(auth).login("https://wiki.example.com/xwiki/bin/view/Main/");
+        verify(response, never()).sendRedirect(anyString());
+    }
+
+    private NonAuthenticatedAccessHandler samlRedirectHandler(Saml2Settings settings) {
+        when(request.getRequestURI()).thenReturn("/xwiki/bin/view/Main/");
+        when(request.getRequestURL()).thenReturn(new StringBuffer("https://wiki.example.com/xwiki/bin/view/Main/"));
+        return new NonAuthenticatedAccessHandler(context, loginAuthFactory, settings,
+                RequestClassifier.compile(new String[0]), AuthnRequestBuilder.from(settings));
+    }
+
+    private static Saml2Settings settings(Properties extraProperties) {
+        final Properties properties = new Properties();
+        properties.putAll(extraProperties);
+        properties.put("onelogin.saml2.sp.entityid", "https://wiki.example.com/saml");
+        properties.put("onelogin.saml2.sp.assertion_consumer_service.url", "https://wiki.example.com/xwiki/bin/loginsubmit/XWiki/XWikiLogin");
+        properties.put("onelogin.saml2.idp.entityid", "https://idp.example.com");
+        properties.put("onelogin.saml2.idp.single_sign_on_service.url", "https://idp.example.com/sso");
+        return new SettingsBuilder().fromProperties(properties).build();
+    }
+}
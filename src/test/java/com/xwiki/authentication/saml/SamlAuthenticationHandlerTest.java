@@ -0,0 +1,126 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.authentication.saml;
+
+import com.xpn.xwiki.XWikiContext;
+import com.xpn.xwiki.web.XWikiRequest;
+import com.xpn.xwiki.web.XWikiResponse;
+import com.xwiki.authentication.saml.metrics.LatencyHistogram;
+import com.xwiki.authentication.saml.metrics.LoginMetrics;
+import com.xwiki.authentication.saml.onelogin.OneLoginAuth;
+import com.xwiki.authentication.saml.samlauth.AssertionReplayCache;
+import com.xwiki.authentication.saml.samlauth.LoginAdmissionControl;
+import com.xwiki.authentication.saml.samlauth.SamlAuthConfig;
+import com.xwiki.authentication.saml.testsupport.ConfigurationSourceWithProperties;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.Properties;
+import javax.servlet.http.HttpServletResponse;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class SamlAuthenticationHandlerTest {
+    private final XWikiContext context = new XWikiContext();
+    private final XWikiRequest request = mock(XWikiRequest.class);
+    private final XWikiResponse response = mock(XWikiResponse.class);
+    private final StringWriter page = new StringWriter();
+    private final OneLoginAuth loginAuthFactory = mock(OneLoginAuth.class);
+    private final LoginAdmissionControl loginAdmissionControl = new LoginAdmissionControl(1, 0, 0);
+    private final LoginMetrics loginMetrics = new LoginMetrics(new LatencyHistogram());
+
+    public SamlAuthenticationHandlerTest() throws IOException {
+        context.setRequest(request);
+        context.setResponse(response);
+        when(request.getRequestURL()).thenReturn(new StringBuffer("https://wiki.example.com/xwiki/bin/login?a=1&b=2"));
+        when(response.getWriter()).thenReturn(new PrintWriter(page));
+    }
+
+    @Test
+    public void whenTooManyLoginsAreInProgress_ShouldAskTheBrowserToPostTheResponseAgainLater() throws Exception {
+        when(request.getParameter("SAMLResponse")).thenReturn("PHNhbWxwOlJlc3BvbnNlLz4=");
+        when(request.getParameter("RelayState")).thenReturn("/xwiki/bin/view/Main/");
+        assertTrue(loginAdmissionControl.tryAcquire());
+
+        assertNull(handler().handle());
+
+        verify(response).setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+        verify(response).setHeader("Retry-After", "5");
+        verify(loginAuthFactory, never()).produce(any(), any(), any());
+        assertTrue(context.isFinished());
+        assertEquals(1, loginMetrics.getRejectedLoginCount());
+        final String html = page.toString();
+        assertTrue(html.contains("<form method=\"post\" action=\"https://wiki.example.com/xwiki/bin/login?a=1&amp;b=2\">"));
+        assertTrue(html.contains("<input type=\"hidden\" name=\"SAMLResponse\" value=\"PHNhbWxwOlJlc3BvbnNlLz4=\"/>"));
+        assertTrue(html.contains("<input type=\"hidden\" name=\"RelayState\" value=\"/xwiki/bin/view/Main/\"/>"));
+        assertTrue(html.contains("setTimeout(function () { document.forms[0].submit(); }, 5000);"));
+    }
+
+    @Test
+    public void whenRejectedLoginCarriesMarkup_ShouldEscapeItInTheRetryPage() throws Exception {
+        when(request.getParameter("SAMLResponse")).thenReturn("\"/><script>alert('response')</script>");
+        when(request.getParameter("RelayState")).thenReturn("/xwiki/?x=\"><img src=x onerror=alert(1)>&y=1");
+        assertTrue(loginAdmissionControl.tryAcquire());
+
+        handler().handle();
+
+        final String html = page.toString();
+        assertTrue(html.contains(
+                "name=\"SAMLResponse\" value=\"&quot;/&gt;&lt;script&gt;alert('response')&lt;/script&gt;\"/>"));
+        assertTrue(html.contains(
+                "name=\"RelayState\" value=\"/xwiki/?x=&quot;&gt;&lt;img src=x onerror=alert(1)&gt;&amp;y=1\"/>"));
+        assertFalse(html.contains("<script>alert"));
+        assertFalse(html.contains("<img"));
+    }
+
+    @Test
+    public void whenRejectedLoginHasNoRelayState_ShouldOnlyPostTheResponseAgain() throws Exception {
+        when(request.getParameter("SAMLResponse")).thenReturn("PHNhbWxwOlJlc3BvbnNlLz4=");
+        assertTrue(loginAdmissionControl.tryAcquire());
+
+        handler().handle();
+
+        assertTrue(page.toString().contains("name=\"SAMLResponse\""));
+        assertFalse(page.toString().contains("name=\"RelayState\""));
+    }
+
+    private SamlAuthenticationHandler handler() {
+        final SamlAuthConfig authConfig = SamlAuthConfig.from(configuration());
+        return new SamlAuthenticationHandler(context, loginAuthFactory, null, authConfig, null, null, null, null,
+                new AssertionReplayCache(0), loginAdmissionControl, null, loginMetrics);
+    }
+
+    private static ConfigurationSourceWithProperties configuration() {
+        final Properties properties = new Properties();
+        properties.setProperty("xwiki.authentication.saml2.login_retry_after_seconds", "5");
+        final ConfigurationSourceWithProperties configuration = new ConfigurationSourceWithProperties();
+        configuration.setFromProperties(properties);
+        return configuration;
+    }
+}
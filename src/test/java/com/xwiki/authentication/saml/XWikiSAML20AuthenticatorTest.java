@@ -0,0 +1,54 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.authentication.saml;
+
+import com.xpn.xwiki.user.api.XWikiUser;
+import com.xwiki.authentication.saml.testsupport.LocalIdentityProvider;
+import com.xwiki.authentication.saml.testsupport.SamlLoginEnvironment;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+public class XWikiSAML20AuthenticatorTest {
+    private static final Map<String, List<String>> ATTRIBUTES =
+            LocalIdentityProvider.userAttributes("Arthur", "Dent", "user42@example.com", 3);
+
+    @Test
+    public void whenResponseIsSignedByTheIdentityProvider_ShouldAuthenticateTheUser() throws Exception {
+        final SamlLoginEnvironment environment = new SamlLoginEnvironment(new Properties());
+
+        final XWikiUser user = environment.loginRequest("user42@example.com", ATTRIBUTES).login();
+
+        assertEquals("xwiki:XWiki.User42", user.getFullName());
+    }
+
+    @Test
+    public void whenResponseIsSignedByAnotherIdentityProvider_ShouldNotAuthenticate() throws Exception {
+        final SamlLoginEnvironment environment = new SamlLoginEnvironment(new Properties());
+        final SamlLoginEnvironment impostor = new SamlLoginEnvironment(new Properties());
+        final String forgedResponse = impostor.identityProvider.signedResponse("user42@example.com", ATTRIBUTES);
+
+        assertNull(environment.loginRequest(forgedResponse).login());
+    }
+}
@@ -0,0 +1,71 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.authentication.saml.benchmark;
+
+import com.onelogin.saml2.settings.SettingsBuilder;
+import com.xwiki.authentication.saml.samlauth.AuthnRequestBuilder;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+// Run with: mvn test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=<this class>
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(4)
+public class AuthnRequestBuilderBenchmark {
+    private static final String RETURN_URL = "https://wiki.example.com/bin/view/Main/WebHome";
+    private AuthnRequestBuilder authnRequestBuilder;
+
+    @Setup
+    public void setup() {
+        final Properties settings = new Properties();
+        settings.put("onelogin.saml2.sp.entityid", "https://wiki.example.com/saml");
+        settings.put("onelogin.saml2.sp.assertion_consumer_service.url", "https://wiki.example.com/bin/loginsubmit/XWiki/XWikiLogin");
+        settings.put("onelogin.saml2.idp.entityid", "https://idp.example.com");
+        settings.put("onelogin.saml2.idp.single_sign_on_service.url", "https://idp.example.com/sso");
+        authnRequestBuilder = AuthnRequestBuilder.from(new SettingsBuilder().fromProperties(settings).build());
+    }
+
+    @Benchmark
+    public String redirectUrl() {
+        return authnRequestBuilder.redirectUrl(RETURN_URL);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(AuthnRequestBuilderBenchmark.class.getSimpleName()).build()).run();
+    }
+}
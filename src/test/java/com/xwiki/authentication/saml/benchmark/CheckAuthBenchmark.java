@@ -0,0 +1,107 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.authentication.saml.benchmark;
+
+import com.xpn.xwiki.XWikiException;
+import com.xpn.xwiki.user.api.XWikiUser;
+import com.xwiki.authentication.saml.testsupport.CheckAuthFixture;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+// The three branches of SamlAuthenticator.checkAuth over XWikiMock; gc.alloc.rate.norm is the allocation per call.
+// The SAMLResponse is mocked, so its signature validation isn't part of the measure, only the plugin's own work.
+// Run with: mvn test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=<this class>
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(4)
+public class CheckAuthBenchmark {
+    @State(Scope.Thread)
+    public static class AlreadyAuthenticated {
+        CheckAuthFixture fixture;
+
+        @Setup
+        public void setup(QuietLogs quietLogs) throws Exception {
+            fixture = new CheckAuthFixture().userIsLoggedInTheSession();
+            fixture.build();
+        }
+    }
+
+    // the user exists and its groups are already in sync after the first login, as for most returning users
+    @State(Scope.Thread)
+    public static class IncomingSamlResponse {
+        CheckAuthFixture fixture;
+
+        @Setup
+        public void setup(QuietLogs quietLogs) throws Exception {
+            fixture = new CheckAuthFixture().identityProviderPostsResponseForExistingUser("XWiki.Developers");
+            fixture.build();
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class AnonymousRedirect {
+        CheckAuthFixture fixture;
+
+        @Setup
+        public void setup(QuietLogs quietLogs) throws Exception {
+            fixture = new CheckAuthFixture().userIsAnonymous();
+            fixture.build();
+        }
+    }
+
+    @Benchmark
+    public XWikiUser alreadyAuthenticated(AlreadyAuthenticated state) throws XWikiException {
+        return state.fixture.checkAuth();
+    }
+
+    @Benchmark
+    public XWikiUser incomingSamlResponse(IncomingSamlResponse state) throws XWikiException {
+        return state.fixture.checkAuth();
+    }
+
+    @Benchmark
+    public XWikiUser anonymousRedirect(AnonymousRedirect state) throws XWikiException {
+        return state.fixture.checkAuth();
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(CheckAuthBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .build()).run();
+    }
+}
@@ -0,0 +1,187 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.authentication.saml.benchmark;
+
+import com.onelogin.saml2.Auth;
+import com.xpn.xwiki.XWikiContext;
+import com.xpn.xwiki.XWikiException;
+import com.xwiki.authentication.saml.samlauth.Saml2XWikiAttributes;
+import com.xwiki.authentication.saml.samlauth.SamlAuthConfig;
+import com.xwiki.authentication.saml.samlauth.SamlXwikiAttributesExtractor;
+import com.xwiki.authentication.saml.testsupport.CheckAuthFixture;
+import com.xwiki.authentication.saml.testsupport.ConfigurationSourceWithProperties;
+import com.xwiki.authentication.saml.xwiki.Group;
+import com.xwiki.authentication.saml.xwiki.GroupSyncPolicy;
+import com.xwiki.authentication.saml.xwiki.XWikiGroupManager;
+import com.xwiki.authentication.saml.xwiki.XWikiUserGroupSynchronizer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.reference.DocumentReferenceResolver;
+
+import static java.util.Collections.singletonList;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.mockito.Mockito.withSettings;
+
+// Group synchronization over XWikiMock while the groups hold groupSize members, every user being in groupsPerUser
+// groups plus the default group shared by everybody. main() runs it for each thread count and prints the curve.
+// Run with: mvn test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=<this class> -Dbenchmark.threads=1,2,4,8
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 3, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class GroupSyncScalingBenchmark {
+    private static final int USERS_PER_THREAD = 1000;
+    private static final DocumentReferenceResolver<String> RESOLVER = (name, parameters) ->
+            new DocumentReference(CheckAuthFixture.WIKI, "XWiki", name.substring(name.lastIndexOf('.') + 1));
+
+    @State(Scope.Benchmark)
+    public static class Groups {
+        @Param({"10", "1000", "100000"})
+        public int groupSize;
+
+        @Param({"1", "10"})
+        public int groupsPerUser;
+
+        XWikiContext context;
+        XWikiGroupManager groupManager;
+        XWikiUserGroupSynchronizer synchronizer;
+        Saml2XWikiAttributes attributes;
+        private final AtomicInteger threads = new AtomicInteger();
+
+        @Setup
+        public void setup(QuietLogs quietLogs) throws Exception {
+            context = new CheckAuthFixture().documentsExist().context;
+            groupManager = new XWikiGroupManager(RESOLVER);
+            final SamlAuthConfig authConfig = SamlAuthConfig.from(new ConfigurationSourceWithProperties());
+            synchronizer = new XWikiUserGroupSynchronizer(groupManager, context, GroupSyncPolicy.from(authConfig));
+            attributes = attributes(authConfig);
+            for (String groupName : attributes.groupsFromSaml)
+                populate(groupName);
+        }
+
+        private Saml2XWikiAttributes attributes(SamlAuthConfig authConfig) {
+            final List<String> groups = new ArrayList<>();
+            for (int i = 0; i < groupsPerUser; i++)
+                groups.add("XWiki.ScalingGroup" + i);
+            final Map<String, List<String>> samlAttributes = new LinkedHashMap<>();
+            samlAttributes.put("email", singletonList("scaling@example.com"));
+            samlAttributes.put(authConfig.groupsAttributeName, groups);
+
+            final Auth auth = mock(Auth.class, withSettings().stubOnly());
+            when(auth.getNameId()).thenReturn("scaling@example.com");
+            when(auth.getAttributes()).thenReturn(samlAttributes);
+            return new SamlXwikiAttributesExtractor(authConfig).extractXWikiAttributesFromSaml(auth);
+        }
+
+        private void populate(String groupName) throws XWikiException {
+            final Group group = new Group(Group.getGroupReferenceForName(groupName, RESOLVER), context,
+                    groupManager.getMembershipIndex());
+            for (int i = 0; i < groupSize; i++)
+                group.addMember("XWiki.ExistingMember" + i);
+            group.setupNewGroupDocument();
+            group.save();
+        }
+
+        Collection<String> groupNames() {
+            return attributes.groupsFromSaml;
+        }
+    }
+
+    // users cycle through a pool per thread, so documents don't pile up in XWikiMock
+    @State(Scope.Thread)
+    public static class User {
+        private final List<DocumentReference> users = new ArrayList<>(USERS_PER_THREAD);
+        private DocumentReference member;
+        private int next;
+
+        @Setup
+        public void setup(Groups groups) throws XWikiException {
+            final int thread = groups.threads.getAndIncrement();
+            for (int i = 0; i < USERS_PER_THREAD; i++)
+                users.add(new DocumentReference(CheckAuthFixture.WIKI, "XWiki", "ScalingUser" + thread + "_" + i));
+            member = new DocumentReference(CheckAuthFixture.WIKI, "XWiki", "ScalingMember" + thread);
+            groups.synchronizer.syncUserGroups(member, groups.attributes);
+        }
+
+        DocumentReference nextUser() {
+            next = (next + 1) % USERS_PER_THREAD;
+            return users.get(next);
+        }
+    }
+
+    // a new user joins all of its groups, then is removed from them again so group sizes stay the same
+    @Benchmark
+    public int joinAndLeave(Groups groups, User user) throws XWikiException {
+        final DocumentReference userReference = user.nextUser();
+        int changes = groups.synchronizer.syncUserGroups(userReference, groups.attributes).groupsAdded;
+        for (String groupName : groups.groupNames())
+            if (groups.groupManager.removeUserFromGroup(userReference.getName(), groupName, groups.context))
+                changes++;
+        return changes;
+    }
+
+    // a returning user whose groups didn't change, still compared against every group
+    @Benchmark
+    public int resyncMember(Groups groups, User user) throws XWikiException {
+        return groups.synchronizer.syncUserGroups(user.member, groups.attributes).groupsAdded;
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        final List<String> lines = new ArrayList<>();
+        lines.add("benchmark,groupSize,groupsPerUser,threads,opsPerSecond");
+        for (String threads : System.getProperty("benchmark.threads", "1,2,4,8").split(",")) {
+            final Collection<RunResult> results = new Runner(new OptionsBuilder()
+                    .include(GroupSyncScalingBenchmark.class.getSimpleName())
+                    .threads(Integer.parseInt(threads.trim()))
+                    .build()).run();
+            for (RunResult result : results)
+                lines.add(String.format("%s,%s,%s,%d,%.1f",
+                        result.getParams().getBenchmark().replaceAll(".*\\.", ""),
+                        result.getParams().getParam("groupSize"),
+                        result.getParams().getParam("groupsPerUser"),
+                        result.getParams().getThreads(),
+                        result.getPrimaryResult().getScore()));
+        }
+        lines.forEach(System.out::println);
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.authentication.saml.benchmark;
+
+import com.xwiki.authentication.saml.metrics.LatencyHistogram;
+import com.xwiki.authentication.saml.testsupport.LocalIdentityProvider;
+import com.xwiki.authentication.saml.testsupport.SamlLoginEnvironment;
+import com.xwiki.authentication.saml.testsupport.SamlLoginEnvironment.LoginRequest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+// End-to-end logins through XWikiSAML20Authenticator with responses signed by a LocalIdentityProvider, including
+// the signature validation. Responses are signed before the clock starts, so only the wiki side is measured.
+// Run with: mvn test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=<this class>
+//   -Dloadtest.threads=8 -Dloadtest.logins=2000 -Dloadtest.users=500 -Dloadtest.groups=10 -Dloadtest.warmup=500
+// Any -Dloadtest.saml2.<property> is passed to the authenticator as xwiki.authentication.saml2.<property>.
+public class LoginLoadDriver {
+    private static final String PROPERTY_PREFIX = "loadtest.";
+    private static final String SAML_PROPERTY_PREFIX = PROPERTY_PREFIX + "saml2.";
+
+    public static void main(String[] args) throws Exception {
+        final int threads = Integer.getInteger(PROPERTY_PREFIX + "threads", 8);
+        final int logins = Integer.getInteger(PROPERTY_PREFIX + "logins", 2000);
+        final int users = Integer.getInteger(PROPERTY_PREFIX + "users", 500);
+        final int groups = Integer.getInteger(PROPERTY_PREFIX + "groups", 10);
+        final int warmup = Integer.getInteger(PROPERTY_PREFIX + "warmup", 500);
+
+        final SamlLoginEnvironment environment = new SamlLoginEnvironment(samlProperties());
+        System.out.printf("Signing %d responses for %d users with %d groups%n", warmup + logins, users, groups);
+        final List<LoginRequest> warmupRequests = loginRequests(environment, warmup, users, groups);
+        final List<LoginRequest> requests = loginRequests(environment, logins, users, groups);
+
+        for (LoginRequest request : warmupRequests)
+            request.login();
+
+        final LatencyHistogram latency = new LatencyHistogram();
+        final LongAdder failures = new LongAdder();
+        final AtomicInteger next = new AtomicInteger();
+        final ExecutorService executor = Executors.newFixedThreadPool(threads);
+        final long start = System.nanoTime();
+        for (int i = 0; i < threads; i++)
+            executor.execute(() -> {
+                for (int index = next.getAndIncrement(); index < requests.size(); index = next.getAndIncrement()) {
+                    final long loginStart = System.nanoTime();
+                    try {
+                        if (requests.get(index).login() == null)
+                            failures.increment();
+                    } catch (Exception e) {
+                        failures.increment();
+                    }
+                    latency.recordSince(loginStart);
+                }
+            });
+        executor.shutdown();
+        executor.awaitTermination(1, TimeUnit.HOURS);
+        final double seconds = (System.nanoTime() - start) / (double) TimeUnit.SECONDS.toNanos(1);
+
+        System.out.printf("%d logins on %d threads in %.2f s: %.1f logins/s, %d failed%n",
+                logins, threads, seconds, logins / seconds, failures.sum());
+        System.out.printf("latency ms: p50 %.2f  p90 %.2f  p99 %.2f  p99.9 %.2f  max %.2f%n",
+                latency.getP50Millis(), latency.getP90Millis(), latency.getP99Millis(), latency.getP999Millis(),
+                latency.getMaxMillis());
+        for (Map.Entry<String, Object> metric : environment.getAuthenticator().getLoginMetrics().toMap().entrySet())
+            System.out.println("  " + metric.getKey() + ": " + metric.getValue());
+    }
+
+    private static Properties samlProperties() {
+        final Properties properties = new Properties();
+        for (String name : System.getProperties().stringPropertyNames())
+            if (name.startsWith(SAML_PROPERTY_PREFIX))
+                properties.setProperty(name.substring(SAML_PROPERTY_PREFIX.length()), System.getProperty(name));
+        return properties;
+    }
+
+    private static List<LoginRequest> loginRequests(SamlLoginEnvironment environment, int count, int users,
+                                                    int groups) throws Exception {
+        final List<LoginRequest> requests = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            final String nameId = SamlLoginEnvironment.nameIdFor(i % users);
+            requests.add(environment.loginRequest(nameId,
+                    LocalIdentityProvider.userAttributes("User", String.valueOf(i % users), nameId, groups)));
+        }
+        return requests;
+    }
+}
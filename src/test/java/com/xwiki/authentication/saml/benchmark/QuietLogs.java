@@ -0,0 +1,43 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.authentication.saml.benchmark;
+
+import com.xwiki.authentication.saml.testsupport.CheckAuthFixture;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+// Turns logging off for one benchmark run; the states that build fixtures take it in their setup, so it is set up
+// before them and the level is restored once the run is over
+@State(Scope.Benchmark)
+public class QuietLogs {
+    private Runnable restoreLogs;
+
+    @Setup
+    public void setup() {
+        restoreLogs = CheckAuthFixture.silenceLogs();
+    }
+
+    @TearDown
+    public void tearDown() {
+        restoreLogs.run();
+    }
+}
@@ -0,0 +1,64 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.authentication.saml.metrics;
+
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class LatencyHistogramTest {
+    private final LatencyHistogram histogram = new LatencyHistogram();
+
+    @Test
+    public void whenNothingWasRecorded_ShouldReportZero() {
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getP99Millis());
+        assertEquals(0, histogram.getMeanMillis());
+    }
+
+    @Test
+    public void whenDurationsAreRecorded_ShouldReportPercentilesWithinBucketPrecision() {
+        for (int millis = 1; millis <= 1000; millis++)
+            histogram.record(TimeUnit.MILLISECONDS.toNanos(millis));
+
+        assertEquals(1000, histogram.getCount());
+        assertBetween(500, histogram.getP50Millis());
+        assertBetween(900, histogram.getP90Millis());
+        assertBetween(990, histogram.getP99Millis());
+        assertEquals(1000, histogram.getMaxMillis());
+        assertEquals(500.5, histogram.getMeanMillis(), 0.001);
+    }
+
+    @Test
+    public void whenValueIsBucketed_ShouldFallInsideItsBucket() {
+        for (long value = 1; value > 0 && value < Long.MAX_VALUE / 3; value = value * 3 + 1) {
+            final int bucket = LatencyHistogram.bucketOf(value);
+            assertTrue(LatencyHistogram.highestValueIn(bucket) >= value);
+            assertTrue(bucket == 0 || LatencyHistogram.highestValueIn(bucket - 1) < value);
+        }
+    }
+
+    private static void assertBetween(double expectedMillis, double actualMillis) {
+        assertTrue(actualMillis >= expectedMillis && actualMillis <= expectedMillis * 17 / 16,
+                "expected about " + expectedMillis + " but was " + actualMillis);
+    }
+}
@@ -0,0 +1,64 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.authentication.saml.metrics;
+
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+public class LoginMetricsTest {
+    private final LoginMetrics metrics = new LoginMetrics(new LatencyHistogram());
+
+    @Test
+    public void whenGaugeIsRegistered_ShouldPublishItsCurrentValue() {
+        final AtomicLong queueDepth = new AtomicLong(3);
+        metrics.registerGauge(LoginGauge.LOGIN_QUEUE_DEPTH, queueDepth::get);
+        queueDepth.set(5);
+
+        assertEquals(5L, metrics.toMap().get("loginQueueDepth"));
+        assertEquals(5L, metrics.getLoginQueueDepth());
+    }
+
+    @Test
+    public void whenGaugeIsNotRegistered_ShouldPublishZero() {
+        metrics.registerGauge(LoginGauge.USER_CACHE_HITS, () -> 2);
+
+        final Map<String, Object> values = metrics.toMap();
+        assertEquals(2L, values.get("userCacheHits"));
+        assertEquals(0L, values.get("userCacheMisses"));
+        assertEquals(0L, metrics.getTrackedAssertionCount());
+    }
+
+    @Test
+    public void whenLoginsAreRecorded_ShouldPublishTheirCountsAndLatency() {
+        final long start = System.nanoTime();
+        metrics.loginStarted();
+        metrics.loginFinished(start);
+        metrics.loginRejected();
+
+        final Map<String, Object> values = metrics.toMap();
+        assertEquals(0, values.get("loginsInFlight"));
+        assertEquals(1L, values.get("logins"));
+        assertEquals(1L, values.get("rejectedLogins"));
+        assertEquals(1L, ((Map<?, ?>) values.get("login")).get("count"));
+    }
+}
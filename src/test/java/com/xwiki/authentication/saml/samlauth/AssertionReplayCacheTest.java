@@ -0,0 +1,65 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.authentication.saml.samlauth;
+
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class AssertionReplayCacheTest {
+    private final AtomicLong now = new AtomicLong(1_000_000);
+
+    @Test
+    public void whenAssertionIsRegisteredTwiceBeforeNotOnOrAfter_ShouldRejectTheSecondOne() {
+        final AssertionReplayCache cache = new AssertionReplayCache(10, now::get);
+
+        assertTrue(cache.register("assertion-1", now.get() + 300_000));
+        now.addAndGet(299_000);
+        assertFalse(cache.register("assertion-1", now.get() + 1_000));
+    }
+
+    @Test
+    public void whenNotOnOrAfterHasPassed_ShouldExpireTheAssertion() {
+        final AssertionReplayCache cache = new AssertionReplayCache(10, now::get);
+        cache.register("assertion-1", now.get() + 300_000);
+        cache.register("assertion-2", now.get() + 3 * 3600_000);
+
+        now.addAndGet(301_000);
+        cache.register("assertion-3", now.get() + 1_000);
+
+        assertEquals(2, cache.size());
+        assertTrue(cache.register("assertion-1", now.get() + 300_000));
+        assertFalse(cache.register("assertion-2", now.get() + 300_000));
+    }
+
+    @Test
+    public void whenCacheIsFull_ShouldAcceptButNotTrackNewAssertions() {
+        final AssertionReplayCache cache = new AssertionReplayCache(1, now::get);
+        cache.register("assertion-1", now.get() + 300_000);
+
+        assertTrue(cache.register("assertion-2", now.get() + 300_000));
+        assertTrue(cache.register("assertion-2", now.get() + 300_000));
+        assertEquals(1, cache.size());
+        assertEquals(2, cache.getUntrackedCount());
+    }
+}
@@ -0,0 +1,180 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.authentication.saml.samlauth;
+
+import com.onelogin.saml2.authn.AuthnRequest;
+import com.onelogin.saml2.settings.Saml2Settings;
+import com.onelogin.saml2.settings.SettingsBuilder;
+import java.io.ByteArrayOutputStream;
+import java.io.StringReader;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.Base64;
+import java.util.Properties;
+import java.util.zip.Inflater;
+import javax.xml.parsers.DocumentBuilderFactory;
+import org.junit.jupiter.api.Test;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+import org.xml.sax.InputSource;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class AuthnRequestBuilderTest {
+    private static final String IDP_SSO_URL = "https://idp.example.com/sso";
+
+    @Test
+    public void whenRedirectUrlIsBuilt_ShouldCarryDeflatedAuthnRequestAndRelayState() throws Exception {
+        final AuthnRequestBuilder builder = new AuthnRequestBuilder(settings(IDP_SSO_URL),
+                () -> "ONELOGIN_42", () -> Instant.parse("2021-05-04T10:20:30.456Z"));
+
+        final String redirectUrl = builder.redirectUrl("https://wiki.example.com/bin/view/Main/?a=1&b=2");
+
+        assertTrue(redirectUrl.startsWith(IDP_SSO_URL + "?SAMLRequest="));
+        assertTrue(redirectUrl.endsWith("&RelayState=https%3A%2F%2Fwiki.example.com%2Fbin%2Fview%2FMain%2F%3Fa%3D1%26b%3D2"));
+
+        final String xml = inflate(samlRequestOf(redirectUrl));
+        assertTrue(xml.contains("ID=\"ONELOGIN_42\""));
+        assertTrue(xml.contains("IssueInstant=\"2021-05-04T10:20:30Z\""));
+        assertTrue(xml.contains("Destination=\"" + IDP_SSO_URL + "\""));
+        assertTrue(xml.contains("<saml:Issuer>https://wiki.example.com/saml</saml:Issuer>"));
+    }
+
+    @Test
+    public void whenSameBuilderIsReused_ShouldProduceIdenticalRequestsForSameIdAndInstant() throws Exception {
+        final AuthnRequestBuilder builder = new AuthnRequestBuilder(settings(IDP_SSO_URL),
+                () -> "ONELOGIN_42", () -> Instant.EPOCH);
+
+        assertEquals(inflate(samlRequestOf(builder.redirectUrl("a"))), inflate(samlRequestOf(builder.redirectUrl("b"))));
+    }
+
+    @Test
+    public void whenIdpUrlIsNotConfigured_ShouldBeDisabled() {
+        assertFalse(AuthnRequestBuilder.from(settings("")).isEnabled());
+    }
+
+    @Test
+    public void whenSettingsAreDefault_ShouldProduceTheSameRequestAsTheToolkit() throws Exception {
+        assertSameAuthnRequestAsToolkit(settings(IDP_SSO_URL));
+    }
+
+    @Test
+    public void whenNameIdFormatIsConfigured_ShouldProduceTheSameNameIdPolicyAsTheToolkit() throws Exception {
+        final Properties properties = new Properties();
+        properties.put("onelogin.saml2.sp.nameidformat", "urn:oasis:names:tc:SAML:1.1:nameid-format:emailAddress");
+
+        assertSameAuthnRequestAsToolkit(settings(IDP_SSO_URL, properties));
+    }
+
+    @Test
+    public void whenAuthnContextIsRequested_ShouldProduceTheSameRequestedAuthnContextAsTheToolkit() throws Exception {
+        final Properties properties = new Properties();
+        properties.put("onelogin.saml2.security.requested_authn_context",
+                "urn:oasis:names:tc:SAML:2.0:ac:classes:PasswordProtectedTransport,urn:oasis:names:tc:SAML:2.0:ac:classes:X509");
+        properties.put("onelogin.saml2.security.requested_authn_context_comparison", "minimum");
+
+        assertSameAuthnRequestAsToolkit(settings(IDP_SSO_URL, properties));
+    }
+
+    @Test
+    public void whenAuthnRequestsAreSigned_ShouldBeDisabled() {
+        final Properties properties = new Properties();
+        properties.put("onelogin.saml2.security.authnrequest_signed", "true");
+
+        assertFalse(AuthnRequestBuilder.from(settings(IDP_SSO_URL, properties)).isEnabled());
+        assertTrue(AuthnRequestBuilder.from(settings(IDP_SSO_URL)).isEnabled());
+    }
+
+    @Test
+    public void whenEncryptedNameIdIsWanted_ShouldBeDisabled() {
+        final Properties properties = new Properties();
+        properties.put("onelogin.saml2.security.want_nameid_encrypted", "true");
+
+        assertFalse(AuthnRequestBuilder.from(settings(IDP_SSO_URL, properties)).isEnabled());
+    }
+
+    // the toolkit request gives the ID and IssueInstant, everything else must be rendered the same way
+    private static void assertSameAuthnRequestAsToolkit(Saml2Settings settings) throws Exception {
+        final String toolkitXml = new AuthnRequest(settings).getAuthnRequestXml();
+        final Element toolkitRequest = parse(toolkitXml);
+        final AuthnRequestBuilder builder = new AuthnRequestBuilder(settings, () -> toolkitRequest.getAttribute("ID"),
+                () -> Instant.parse(toolkitRequest.getAttribute("IssueInstant")));
+
+        final String xml = new String(builder.authnRequestXml(), StandardCharsets.UTF_8);
+
+        assertTrue(builder.isEnabled());
+        assertTrue(toolkitRequest.isEqualNode(parse(xml)), () -> "Expected " + toolkitXml + " but was " + xml);
+    }
+
+    private static Element parse(String xml) throws Exception {
+        final DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+        factory.setNamespaceAware(true);
+        final Element root = factory.newDocumentBuilder()
+                .parse(new InputSource(new StringReader(xml)))
+                .getDocumentElement();
+        removeBlankText(root);
+        return root;
+    }
+
+    private static void removeBlankText(Node node) {
+        final NodeList children = node.getChildNodes();
+        for (int i = children.getLength() - 1; i >= 0; i--) {
+            final Node child = children.item(i);
+            if (child.getNodeType() == Node.TEXT_NODE && child.getTextContent().trim().isEmpty())
+                node.removeChild(child);
+            else
+                removeBlankText(child);
+        }
+    }
+
+    private static Saml2Settings settings(String idpSsoUrl) {
+        return settings(idpSsoUrl, new Properties());
+    }
+
+    private static Saml2Settings settings(String idpSsoUrl, Properties extraProperties) {
+        final Properties properties = new Properties();
+        properties.putAll(extraProperties);
+        properties.put("onelogin.saml2.sp.entityid", "https://wiki.example.com/saml");
+        properties.put("onelogin.saml2.sp.assertion_consumer_service.url", "https://wiki.example.com/bin/loginsubmit/XWiki/XWikiLogin");
+        properties.put("onelogin.saml2.idp.entityid", "https://idp.example.com");
+        properties.put("onelogin.saml2.idp.single_sign_on_service.url", idpSsoUrl);
+        return new SettingsBuilder().fromProperties(properties).build();
+    }
+
+    private static String samlRequestOf(String redirectUrl) throws Exception {
+        final String encoded = redirectUrl.substring(redirectUrl.indexOf("SAMLRequest=") + 12, redirectUrl.indexOf("&RelayState"));
+        return URLDecoder.decode(encoded, "UTF-8");
+    }
+
+    private static String inflate(String samlRequest) throws Exception {
+        final Inflater inflater = new Inflater(true);
+        inflater.setInput(Base64.getDecoder().decode(samlRequest));
+        final ByteArrayOutputStream inflated = new ByteArrayOutputStream();
+        final byte[] buffer = new byte[1024];
+        while (!inflater.finished())
+            inflated.write(buffer, 0, inflater.inflate(buffer));
+        inflater.end();
+        return new String(inflated.toByteArray(), StandardCharsets.UTF_8);
+    }
+}
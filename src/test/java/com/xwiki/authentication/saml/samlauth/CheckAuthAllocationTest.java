@@ -0,0 +1,112 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.authentication.saml.samlauth;
+
+import com.xpn.xwiki.web.XWikiRequest;
+import com.xwiki.authentication.saml.testsupport.CheckAuthFixture;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Proxy;
+import javax.servlet.http.HttpSession;
+import org.xwiki.model.reference.DocumentReference;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+// Fails when a page view of a logged in user allocates more than the budget, in bytes per checkAuth call.
+// Raise it on purpose with -Dsaml.allocationBudget.authenticated=<bytes> while looking at a regression.
+public class CheckAuthAllocationTest {
+    private static final long AUTHENTICATED_BUDGET = Long.getLong("saml.allocationBudget.authenticated", 256);
+    private static final int WARMUP_CALLS = 20_000;
+    private static final int MEASURED_CALLS = 20_000;
+    private static final String USER = "XWiki." + CheckAuthFixture.USER_NAME;
+
+    private final com.sun.management.ThreadMXBean threads =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    private CheckAuthFixture fixture;
+    private XWikiRequest request;
+    private HttpSession session;
+    private Runnable restoreLogs;
+
+    @BeforeEach
+    public void setup() throws Exception {
+        assumeTrue(threads.isThreadAllocatedMemorySupported());
+        threads.setThreadAllocatedMemoryEnabled(true);
+
+        // Mockito builds a stack trace for every call on a mock, far more than what is measured here
+        session = plain(HttpSession.class, "getAttribute", USER);
+        request = plain(XWikiRequest.class, "getSession", session);
+        restoreLogs = CheckAuthFixture.silenceLogs();
+        fixture = new CheckAuthFixture();
+        fixture.build();
+        fixture.context.setRequest(request);
+    }
+
+    @AfterEach
+    public void tearDown() {
+        if (restoreLogs != null)
+            restoreLogs.run();
+    }
+
+    @Test
+    public void whenUserIsLoggedInTheSession_ShouldStayWithinAllocationBudget() throws Exception {
+        assertEquals(new DocumentReference(CheckAuthFixture.WIKI, "XWiki", CheckAuthFixture.USER_NAME),
+                fixture.checkAuth().getUserReference());
+
+        final long baseline = bytesPerCall(this::readSessionUser);
+        final long allocated = bytesPerCall(fixture::checkAuth) - baseline;
+
+        assertTrue(allocated <= AUTHENTICATED_BUDGET, "checkAuth allocated " + allocated
+                + " bytes per call for an authenticated user, the budget is " + AUTHENTICATED_BUDGET);
+    }
+
+    // the request and session calls checkAuth makes, which allocate their proxy arguments
+    private Object readSessionUser() {
+        return request.getSession(false).getAttribute("saml_user");
+    }
+
+    private long bytesPerCall(Call call) throws Exception {
+        Object result = null;
+        for (int i = 0; i < WARMUP_CALLS; i++)
+            result = call.run();
+
+        final long threadId = Thread.currentThread().getId();
+        final long before = threads.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < MEASURED_CALLS; i++)
+            result = call.run();
+        final long after = threads.getThreadAllocatedBytes(threadId);
+
+        // keeps the results alive, so the JIT can't drop the calls
+        assertTrue(result != null);
+        return (after - before) / MEASURED_CALLS;
+    }
+
+    private interface Call {
+        Object run() throws Exception;
+    }
+
+    private static <T> T plain(Class<T> type, String methodName, Object value) {
+        return type.cast(Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[]{type},
+                (proxy, method, args) -> method.getName().equals(methodName) ? value : null));
+    }
+}
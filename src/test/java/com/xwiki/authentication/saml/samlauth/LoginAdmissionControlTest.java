@@ -0,0 +1,67 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.authentication.saml.samlauth;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class LoginAdmissionControlTest {
+    @Test
+    public void whenDisabled_ShouldAdmitEveryLogin() {
+        final LoginAdmissionControl admissionControl = new LoginAdmissionControl(0, 0, 0);
+
+        assertTrue(admissionControl.tryAcquire());
+        assertTrue(admissionControl.tryAcquire());
+        assertEquals(0, admissionControl.getAdmittedCount());
+    }
+
+    @Test
+    public void whenLimitIsReachedAndQueueIsFull_ShouldRejectImmediately() {
+        final LoginAdmissionControl admissionControl = new LoginAdmissionControl(1, 0, 10_000);
+
+        assertTrue(admissionControl.tryAcquire());
+        assertFalse(admissionControl.tryAcquire());
+        assertEquals(1, admissionControl.getRejectedCount());
+    }
+
+    @Test
+    public void whenQueuedLoginWaitsLongerThanTimeout_ShouldRejectAndRecordWaitTime() {
+        final LoginAdmissionControl admissionControl = new LoginAdmissionControl(1, 1, 20);
+        admissionControl.tryAcquire();
+
+        assertFalse(admissionControl.tryAcquire());
+        assertEquals(0, admissionControl.getQueueDepth());
+        assertEquals(1, admissionControl.getMaxObservedQueueDepth());
+        assertTrue(admissionControl.getMaxWaitMillis() >= 20);
+    }
+
+    @Test
+    public void whenLoginIsReleased_ShouldAdmitTheNextOne() {
+        final LoginAdmissionControl admissionControl = new LoginAdmissionControl(1, 0, 0);
+        admissionControl.tryAcquire();
+        admissionControl.release();
+
+        assertTrue(admissionControl.tryAcquire());
+        assertEquals(2, admissionControl.getAdmittedCount());
+    }
+}
@@ -0,0 +1,79 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.authentication.saml.samlauth;
+
+import com.xpn.xwiki.XWikiContext;
+import com.xpn.xwiki.web.XWikiRequest;
+import com.xwiki.authentication.saml.samlauth.RequestClassifier.Decision;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class RequestClassifierTest {
+    private final XWikiContext context = new XWikiContext();
+    private final XWikiRequest request = mock(XWikiRequest.class);
+
+    public RequestClassifierTest() {
+        context.setRequest(request);
+        context.setAction("view");
+        when(request.getContextPath()).thenReturn("/xwiki");
+        when(request.getRequestURI()).thenReturn("/xwiki/bin/view/Main/");
+    }
+
+    @Test
+    public void whenNoRuleMatches_ShouldRedirectToSaml() {
+        assertEquals(Decision.SAML, RequestClassifier.compile(new String[]{""}).classify(context));
+    }
+
+    @Test
+    public void whenActionIsLogin_ShouldUseDefaultAuthentication() {
+        context.setAction("login");
+
+        assertEquals(Decision.DEFAULT_AUTH, RequestClassifier.compile(new String[0]).classify(context));
+    }
+
+    @Test
+    public void whenPathMatchesPrefixInsideTheWebapp_ShouldUseRuleDecision() {
+        when(request.getRequestURI()).thenReturn("/xwiki/rest/wikis");
+        final RequestClassifier classifier = RequestClassifier.compile(new String[]{"path:/rest/->default"});
+
+        assertEquals(Decision.DEFAULT_AUTH, classifier.classify(context));
+    }
+
+    @Test
+    public void whenHeaderAndUserAgentRulesMatch_ShouldUseFirstMatchingRule() {
+        when(request.getHeader("User-Agent")).thenReturn("Mozilla/5.0 (compatible; Googlebot/2.1)");
+        when(request.getHeader("X-Requested-With")).thenReturn("XMLHttpRequest");
+        final RequestClassifier classifier = RequestClassifier.compile(
+                new String[]{"ua:googlebot->anonymous", "header:X-Requested-With=XMLHttpRequest->default"});
+
+        assertEquals(Decision.ANONYMOUS, classifier.classify(context));
+    }
+
+    @Test
+    public void whenRuleIsMalformed_ShouldIgnoreIt() {
+        final RequestClassifier classifier = RequestClassifier.compile(
+                new String[]{"path/rest->default", "host:example.com->anonymous", "action:view->maybe"});
+
+        assertEquals(Decision.SAML, classifier.classify(context));
+    }
+}
@@ -62,11 +62,13 @@ import java.util.function.Consumer;
 import static java.util.Collections.emptyList;
 import static java.util.Collections.singletonList;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.anyInt;
 import static org.mockito.ArgumentMatchers.anyString;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
@@ -81,6 +83,17 @@ public class SamlAuthenticatorTest {
             .shouldStartAuthenticationWithUrlForRedirectionAfterCompletion("https://happy");
     }
 
+    @Test
+    public void whenAnonymousUserAccess_ShouldNotCreateSession() throws XWikiException, IOException, SettingsException, ComponentLookupException {
+        given()
+            .userIsAnonymous()
+            .currentRequestUrlIs("https://happy")
+        .whenAuthenticationIsVerified()
+        .then()
+            .shouldStartAuthenticationWithUrlForRedirectionAfterCompletion("https://happy")
+            .noSessionHasBeenCreated();
+    }
+
     @Test
     public void whenUserLoggedInByCookieAccess_ShouldReturnTheSameLoggedInUser() throws XWikiException, ComponentLookupException {
         given()
@@ -325,6 +338,25 @@ public class SamlAuthenticatorTest {
             .throwsUserCreationFailedException("XWiki failed to create user [arthur.dent@dontpanic.com]. Error code [-3]");
     }
 
+    @Test
+    public void whenSameAssertionIsPostedTwice_ShouldRejectItBeforeWritingTheUserOrItsGroups() throws Exception {
+        given()
+            .identityProviderAuthenticatedUser(user -> {
+                user.id = "arthur.dent@dontpanic.com";
+                user.firstName = "Arthur";
+                user.lastName = "Dent";
+                user.newGroup = "samlGroup";
+            })
+            .identityProviderAssertionId("assertion-42")
+            .xwiki(users ->
+                users.userExists("ArthurDent")
+            )
+        .whenTheSameAssertionIsVerifiedTwice()
+        .then()
+            .noUserHasBeenAuthenticated()
+            .userAndGroupsHaveNotBeenTouched();
+    }
+
     private GivenDSL given() throws XWikiException, ComponentLookupException {
         return new GivenDSL();
     }
@@ -457,7 +489,9 @@ public class SamlAuthenticatorTest {
         }
 
         public GivenDSL userIsLoggedInTheSession(String loggedUserName) {
-             when(context.getRequest().getSession(true).getAttribute(any())).thenReturn(loggedUserName);
+            final HttpSession httpSession = request.getSession(true);
+            when(request.getSession(false)).thenReturn(httpSession);
+            when(httpSession.getAttribute(any())).thenReturn(loggedUserName);
             return this;
         }
 
@@ -539,7 +573,34 @@ public class SamlAuthenticatorTest {
             }
         }
 
+        public GivenDSL identityProviderAssertionId(String assertionId) {
+            when(samlAuth.getLastAssertionId()).thenReturn(assertionId);
+            return this;
+        }
+
         public ThenDSL whenAuthenticationIsVerified() {
+            try {
+                final XWikiUser xWikiUser = newSubject().checkAuth(context, () -> loggedWikiUser);
+                return new ThenDSL(xWikiUser, null);
+            }catch (XWikiException xWikiException) {
+                return new ThenDSL(null, xWikiException);
+            }
+        }
+
+        // only what the second login does is checked
+        public ThenDSL whenTheSameAssertionIsVerifiedTwice() {
+            final SamlAuthenticator subject = newSubject();
+            try {
+                subject.checkAuth(context, () -> loggedWikiUser);
+                Mockito.clearInvocations(groupManager, xwikiStore);
+                xwiki.getSavedDocuments().clear();
+                return new ThenDSL(subject.checkAuth(context, () -> loggedWikiUser), null);
+            } catch (XWikiException xWikiException) {
+                return new ThenDSL(null, xWikiException);
+            }
+        }
+
+        private SamlAuthenticator newSubject() {
             ConfigurationSourceWithProperties cfg = new ConfigurationSourceWithProperties();
             cfg.setFromProperties(props);
             SamlAuthConfig authConfig = SamlAuthConfig.from(cfg);
@@ -549,18 +610,11 @@ public class SamlAuthenticatorTest {
                     (reference, parameters) -> null;
             OneLoginAuth oneLoginAuth = (settings, request, response) -> samlAuth;
 
-            SamlAuthenticator subject = new SamlAuthenticator(authConfig,
+            return new SamlAuthenticator(authConfig,
                     currentMixedDocumentReferenceResolver,
                     compactStringEntityReferenceSerializer,
                     oneLoginAuth,
                     groupManager);
-
-            try {
-                final XWikiUser xWikiUser = subject.checkAuth(context, () -> loggedWikiUser);
-                return new ThenDSL(xWikiUser, null);
-            }catch (XWikiException xWikiException) {
-                return new ThenDSL(null, xWikiException);
-            }
         }
 
         public class ThenDSL {
@@ -590,8 +644,27 @@ public class SamlAuthenticatorTest {
                 return this;
             }
 
-            public void shouldStartAuthenticationWithUrlForRedirectionAfterCompletion(String returnUrl) throws IOException, SettingsException {
+            public ThenDSL shouldStartAuthenticationWithUrlForRedirectionAfterCompletion(String returnUrl) throws IOException, SettingsException {
                 Mockito.verify(samlAuth).login(returnUrl);
+                return this;
+            }
+
+            public ThenDSL noUserHasBeenAuthenticated() {
+                assertNull(xWikiException);
+                assertNull(xWikiUser);
+                return this;
+            }
+
+            public void userAndGroupsHaveNotBeenTouched() throws XWikiException {
+                assertTrue(xwiki.getSavedDocuments().isEmpty());
+                verify(xwikiStore, never()).search(anyString(), anyInt(), anyInt(), any(List.class), any());
+                verify(groupManager, never()).addUserToGroup(anyString(), anyString(), any());
+                verify(groupManager, never()).removeUserFromGroup(anyString(), anyString(), any());
+            }
+
+            public void noSessionHasBeenCreated() {
+                verify(request, never()).getSession();
+                verify(request, never()).getSession(true);
             }
 
             public void authenticatedUserIs(String expectedUserName) {
@@ -0,0 +1,75 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.authentication.saml.samlauth;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
+public class SignedAuthCookieTest {
+    private final AtomicLong now = new AtomicLong(1_000_000L);
+    private final SignedAuthCookie authCookie = cookieWithSecret("don't panic");
+
+    @Test
+    public void whenCookieWasSignedWithSameSecret_ShouldReturnUser() {
+        final String cookieValue = authCookie.sign("XWiki.ArthurDent");
+
+        assertEquals(Optional.of("XWiki.ArthurDent"), authCookie.validate(cookieValue));
+    }
+
+    @Test
+    public void whenCookieWasSignedWithAnotherSecret_ShouldRejectIt() {
+        final String cookieValue = cookieWithSecret("42").sign("XWiki.ArthurDent");
+
+        assertFalse(authCookie.validate(cookieValue).isPresent());
+    }
+
+    @Test
+    public void whenUserInCookieIsTamperedWith_ShouldRejectIt() {
+        final String cookieValue = authCookie.sign("XWiki.ArthurDent");
+        final String forged = authCookie.sign("XWiki.Zaphod");
+        final String tampered = forged.substring(0, forged.indexOf('.')) + cookieValue.substring(cookieValue.indexOf('.'));
+
+        assertFalse(authCookie.validate(tampered).isPresent());
+    }
+
+    @Test
+    public void whenCookieIsExpired_ShouldRejectIt() {
+        final String cookieValue = authCookie.sign("XWiki.ArthurDent");
+        now.addAndGet(60_000L);
+
+        assertFalse(authCookie.validate(cookieValue).isPresent());
+    }
+
+    @Test
+    public void whenCookieIsMalformed_ShouldRejectIt() {
+        assertFalse(authCookie.validate("not-a-cookie").isPresent());
+        assertFalse(authCookie.validate("a.b.c").isPresent());
+        assertFalse(authCookie.validate("").isPresent());
+    }
+
+    private SignedAuthCookie cookieWithSecret(String secret) {
+        return new SignedAuthCookie(true, "saml_auth", secret.getBytes(StandardCharsets.UTF_8), 60, now::get);
+    }
+}
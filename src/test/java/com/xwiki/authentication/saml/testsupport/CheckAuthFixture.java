@@ -0,0 +1,192 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.authentication.saml.testsupport;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+import com.onelogin.saml2.Auth;
+import com.xpn.xwiki.XWikiContext;
+import com.xpn.xwiki.XWikiException;
+import com.xpn.xwiki.doc.XWikiDocument;
+import com.xpn.xwiki.store.XWikiStoreInterface;
+import com.xpn.xwiki.user.api.XWikiUser;
+import com.xpn.xwiki.web.Utils;
+import com.xpn.xwiki.web.XWikiRequest;
+import com.xpn.xwiki.web.XWikiResponse;
+import com.xwiki.authentication.saml.XWikiSAML20Authenticator;
+import com.xwiki.authentication.saml.function.SupplierWithException;
+import com.xwiki.authentication.saml.onelogin.OneLoginAuth;
+import com.xwiki.authentication.saml.samlauth.SamlAuthConfig;
+import com.xwiki.authentication.saml.samlauth.SamlAuthenticator;
+import com.xwiki.authentication.saml.xwiki.XWikiGroupManager;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.servlet.http.HttpSession;
+import org.joda.time.Instant;
+import org.slf4j.LoggerFactory;
+import org.xwiki.component.manager.ComponentLookupException;
+import org.xwiki.component.manager.ComponentManager;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.reference.DocumentReferenceResolver;
+import org.xwiki.model.reference.EntityReferenceSerializer;
+
+import static java.util.Collections.singletonList;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.mockito.Mockito.withSettings;
+
+// A SamlAuthenticator over XWikiMock for the request paths that are measured rather than verified, so every mock
+// is stub only and doesn't keep the invocations it receives
+public class CheckAuthFixture {
+    public static final String WIKI = "xwiki";
+    public static final String USER_NAME = "ArthurDent";
+    public static final String NAME_ID = "arthur.dent@dontpanic.com";
+    public static final String REQUEST_URL = "https://wiki.example.com/xwiki/bin/view/Main/WebHome";
+    private static final String AUTH_FIELD = "saml_user";
+    private static final long ASSERTION_LIFETIME_MILLIS = TimeUnit.SECONDS.toMillis(1);
+    public final XWikiContext context = new XWikiContext();
+    public final XWikiMock xwiki = new XWikiMock(context);
+    public final XWikiRequest request = stub(XWikiRequest.class);
+    public final XWikiResponse response = stub(XWikiResponse.class);
+    public final HttpSession session = stub(HttpSession.class);
+    public final Auth samlAuth = stub(Auth.class);
+    private final XWikiStoreInterface store = stub(XWikiStoreInterface.class);
+    private final Properties properties = new Properties();
+    private final SupplierWithException<XWikiUser, XWikiException> defaultAuthHandler = () -> null;
+    private SamlAuthenticator authenticator;
+
+    public CheckAuthFixture() throws XWikiException, ComponentLookupException {
+        context.setWiki(xwiki);
+        context.setWikiId(WIKI);
+        context.setMainXWiki(WIKI);
+        context.setAction("view");
+        context.setRequest(request);
+        context.setResponse(response);
+        xwiki.setStore(store);
+        when(store.loadXWikiDoc(any(), any())).thenAnswer(invocation -> (XWikiDocument) invocation.getArgument(0));
+        when(request.getRequestURL()).thenAnswer(invocation -> new StringBuffer(REQUEST_URL));
+        when(request.getSession()).thenReturn(session);
+        when(request.getSession(true)).thenReturn(session);
+        setupComponentManager();
+
+        properties.setProperty("xwiki.authentication.saml2.sp.entityid", "https://wiki.example.com/saml");
+        properties.setProperty("xwiki.authentication.saml2.sp.assertion_consumer_service.url",
+                "https://wiki.example.com/xwiki/bin/loginsubmit/XWiki/XWikiLogin");
+        properties.setProperty("xwiki.authentication.saml2.idp.entityid", "https://idp.example.com");
+        properties.setProperty("xwiki.authentication.saml2.idp.single_sign_on_service.url", "https://idp.example.com/sso");
+        properties.setProperty("xwiki.authentication.saml2.idp.x509cert", "");
+    }
+
+    // there is no logging configuration on the test classpath, so everything would be logged at debug level;
+    // the returned action restores the previous level
+    public static Runnable silenceLogs() {
+        final Logger root = (Logger) LoggerFactory.getLogger(org.slf4j.Logger.ROOT_LOGGER_NAME);
+        final Level previousLevel = root.getLevel();
+        root.setLevel(Level.OFF);
+        return () -> root.setLevel(previousLevel);
+    }
+
+    private void setupComponentManager() throws ComponentLookupException {
+        final ComponentManager globalCm = stub(ComponentManager.class);
+        final ComponentManager contextCm = stub(ComponentManager.class);
+        @SuppressWarnings("rawtypes")
+        final EntityReferenceSerializer local = (reference, parameters) -> reference + "";
+        Utils.setComponentManager(globalCm);
+        when(globalCm.getInstance(ComponentManager.class, "context")).thenReturn(contextCm);
+        when(contextCm.getInstance(EntityReferenceSerializer.TYPE_STRING, "local")).thenReturn(local);
+    }
+
+    public CheckAuthFixture withProperty(String name, String value) {
+        properties.setProperty("xwiki.authentication.saml2." + name, value);
+        return this;
+    }
+
+    // XWikiMock documents are new unless the store says they exist
+    public CheckAuthFixture documentsExist() throws XWikiException {
+        when(store.exists(any(), any())).thenReturn(true);
+        return this;
+    }
+
+    public CheckAuthFixture userIsLoggedInTheSession() {
+        when(request.getSession(false)).thenReturn(session);
+        when(session.getAttribute(AUTH_FIELD)).thenReturn("XWiki." + USER_NAME);
+        return this;
+    }
+
+    public CheckAuthFixture userIsAnonymous() {
+        when(request.getSession(false)).thenReturn(null);
+        return this;
+    }
+
+    // every response carries a new assertion id, so none of them is ignored as a replay; the assertions expire
+    // a second after they are posted and the replay cache is unbounded, so it only holds the last seconds of a run
+    // instead of filling up and measuring the untracked assertions path
+    public CheckAuthFixture identityProviderPostsResponseForExistingUser(String... groups) throws XWikiException {
+        final AtomicLong assertionIds = new AtomicLong();
+        final Map<String, List<String>> attributes = new LinkedHashMap<>();
+        attributes.put("firstName", singletonList("Arthur"));
+        attributes.put("lastName", singletonList("Dent"));
+        attributes.put("email", singletonList(NAME_ID));
+        attributes.put("XWikiGroups", Arrays.asList(groups));
+
+        when(request.getParameter("SAMLResponse")).thenReturn("SAMLResponse");
+        when(samlAuth.isAuthenticated()).thenReturn(true);
+        when(samlAuth.getNameId()).thenReturn(NAME_ID);
+        when(samlAuth.getAttributes()).thenReturn(attributes);
+        when(samlAuth.getLastAssertionId()).thenAnswer(invocation -> "assertion-" + assertionIds.incrementAndGet());
+        when(samlAuth.getLastAssertionNotOnOrAfter()).thenAnswer(invocation ->
+                singletonList(new Instant(System.currentTimeMillis() + ASSERTION_LIFETIME_MILLIS)));
+        withProperty("assertion_replay_cache_size", String.valueOf(Integer.MAX_VALUE));
+        when(session.getAttribute(XWikiSAML20Authenticator.ORIGINAL_URL_SESSION_KEY)).thenReturn(REQUEST_URL);
+        when(store.exists(any(), any())).thenReturn(true);
+        when(store.search(anyString(), anyInt(), anyInt(), any(List.class), any())).thenReturn(singletonList(USER_NAME));
+        return this;
+    }
+
+    public SamlAuthenticator build() {
+        final ConfigurationSourceWithProperties cfg = new ConfigurationSourceWithProperties();
+        cfg.setFromProperties(properties);
+        final DocumentReferenceResolver<String> resolver =
+                (name, parameters) -> new DocumentReference(WIKI, "XWiki", name.substring(name.lastIndexOf('.') + 1));
+        final EntityReferenceSerializer<String> serializer =
+                (reference, parameters) -> reference.getParent().getName() + "." + reference.getName();
+        final OneLoginAuth oneLoginAuth = (settings, request, response) -> samlAuth;
+
+        authenticator = new SamlAuthenticator(SamlAuthConfig.from(cfg), resolver, serializer, oneLoginAuth,
+                new XWikiGroupManager(resolver));
+        return authenticator;
+    }
+
+    public XWikiUser checkAuth() throws XWikiException {
+        return authenticator.checkAuth(context, defaultAuthHandler);
+    }
+
+    private static <T> T stub(Class<T> type) {
+        return mock(type, withSettings().stubOnly());
+    }
+}
@@ -0,0 +1,147 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.authentication.saml.testsupport;
+
+import com.onelogin.saml2.util.Constants;
+import com.onelogin.saml2.util.Util;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.cert.CertificateEncodingException;
+import java.security.cert.X509Certificate;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import org.w3c.dom.Document;
+
+import static java.util.Collections.singletonList;
+
+// Stands in for the IDP: signs SAMLResponses with its own self-signed key, so logins can be tested without network
+public class LocalIdentityProvider {
+    public static final String ENTITY_ID = "https://idp.example.com";
+    public static final String SINGLE_SIGN_ON_URL = "https://idp.example.com/sso";
+    private static final Duration RESPONSE_VALIDITY = Duration.ofMinutes(10);
+    private final KeyPair keyPair;
+    private final X509Certificate certificate;
+    private final String serviceProviderEntityId;
+    private final String assertionConsumerServiceUrl;
+
+    public LocalIdentityProvider(String serviceProviderEntityId, String assertionConsumerServiceUrl)
+            throws GeneralSecurityException {
+        final KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(2048);
+        this.keyPair = generator.generateKeyPair();
+        this.certificate = SelfSignedCertificate.generate(keyPair, "Local IdP", Duration.ofDays(1));
+        this.serviceProviderEntityId = serviceProviderEntityId;
+        this.assertionConsumerServiceUrl = assertionConsumerServiceUrl;
+    }
+
+    // the value of xwiki.authentication.saml2.idp.x509cert
+    public String getCertificate() throws CertificateEncodingException {
+        return Base64.getEncoder().encodeToString(certificate.getEncoded());
+    }
+
+    public static Map<String, List<String>> userAttributes(String firstName, String lastName, String email,
+                                                           int groupCount) {
+        final List<String> groups = new ArrayList<>(groupCount);
+        for (int i = 0; i < groupCount; i++)
+            groups.add("XWiki.LoadTestGroup" + i);
+
+        final Map<String, List<String>> attributes = new LinkedHashMap<>();
+        attributes.put("firstName", singletonList(firstName));
+        attributes.put("lastName", singletonList(lastName));
+        attributes.put("email", singletonList(email));
+        attributes.put("XWikiGroups", groups);
+        return attributes;
+    }
+
+    // base64 encoded, as posted by the browser in the SAMLResponse parameter
+    public String signedResponse(String nameId, Map<String, List<String>> attributes) throws Exception {
+        final Document response = Util.loadXML(responseXml(nameId, attributes));
+        final String signed = Util.addSign(response, keyPair.getPrivate(), certificate, Constants.RSA_SHA256, Constants.SHA256);
+        return Base64.getEncoder().encodeToString(signed.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private String responseXml(String nameId, Map<String, List<String>> attributes) {
+        final Instant now = Instant.now().truncatedTo(ChronoUnit.SECONDS);
+        final String issueInstant = now.toString();
+        final String notBefore = now.minus(Duration.ofMinutes(1)).toString();
+        final String notOnOrAfter = now.plus(RESPONSE_VALIDITY).toString();
+        final String assertionId = newId();
+
+        final StringBuilder xml = new StringBuilder(1024)
+            .append("<samlp:Response xmlns:samlp=\"urn:oasis:names:tc:SAML:2.0:protocol\"")
+            .append(" xmlns:saml=\"urn:oasis:names:tc:SAML:2.0:assertion\"")
+            .append(" ID=\"").append(newId()).append("\" Version=\"2.0\" IssueInstant=\"").append(issueInstant)
+            .append("\" Destination=\"").append(escape(assertionConsumerServiceUrl)).append("\">")
+            .append("<saml:Issuer>").append(ENTITY_ID).append("</saml:Issuer>")
+            .append("<samlp:Status><samlp:StatusCode Value=\"urn:oasis:names:tc:SAML:2.0:status:Success\"/></samlp:Status>")
+            .append("<saml:Assertion ID=\"").append(assertionId).append("\" Version=\"2.0\" IssueInstant=\"")
+            .append(issueInstant).append("\">")
+            .append("<saml:Issuer>").append(ENTITY_ID).append("</saml:Issuer>")
+            .append("<saml:Subject>")
+            .append("<saml:NameID Format=\"urn:oasis:names:tc:SAML:1.1:nameid-format:emailAddress\">")
+            .append(escape(nameId)).append("</saml:NameID>")
+            .append("<saml:SubjectConfirmation Method=\"urn:oasis:names:tc:SAML:2.0:cm:bearer\">")
+            .append("<saml:SubjectConfirmationData NotOnOrAfter=\"").append(notOnOrAfter)
+            .append("\" Recipient=\"").append(escape(assertionConsumerServiceUrl)).append("\"/>")
+            .append("</saml:SubjectConfirmation>")
+            .append("</saml:Subject>")
+            .append("<saml:Conditions NotBefore=\"").append(notBefore).append("\" NotOnOrAfter=\"").append(notOnOrAfter).append("\">")
+            .append("<saml:AudienceRestriction><saml:Audience>").append(escape(serviceProviderEntityId))
+            .append("</saml:Audience></saml:AudienceRestriction>")
+            .append("</saml:Conditions>")
+            .append("<saml:AuthnStatement AuthnInstant=\"").append(issueInstant).append("\" SessionIndex=\"").append(assertionId).append("\">")
+            .append("<saml:AuthnContext><saml:AuthnContextClassRef>")
+            .append("urn:oasis:names:tc:SAML:2.0:ac:classes:PasswordProtectedTransport")
+            .append("</saml:AuthnContextClassRef></saml:AuthnContext>")
+            .append("</saml:AuthnStatement>")
+            .append("<saml:AttributeStatement>");
+        for (Map.Entry<String, List<String>> attribute : attributes.entrySet()) {
+            xml.append("<saml:Attribute Name=\"").append(escape(attribute.getKey())).append("\">");
+            for (String value : attribute.getValue())
+                xml.append("<saml:AttributeValue>").append(escape(value)).append("</saml:AttributeValue>");
+            xml.append("</saml:Attribute>");
+        }
+        return xml.append("</saml:AttributeStatement>")
+            .append("</saml:Assertion>")
+            .append("</samlp:Response>")
+            .toString();
+    }
+
+    private static String newId() {
+        return "_" + UUID.randomUUID();
+    }
+
+    private static String escape(String value) {
+        return value
+                .replace("&", "&amp;")
+                .replace("\"", "&quot;")
+                .replace("<", "&lt;")
+                .replace(">", "&gt;");
+    }
+}
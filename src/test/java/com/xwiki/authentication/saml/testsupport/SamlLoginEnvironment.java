@@ -0,0 +1,172 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.authentication.saml.testsupport;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+import com.xpn.xwiki.XWikiContext;
+import com.xpn.xwiki.XWikiException;
+import com.xpn.xwiki.doc.XWikiDocument;
+import com.xpn.xwiki.store.XWikiStoreInterface;
+import com.xpn.xwiki.user.api.XWikiUser;
+import com.xpn.xwiki.web.Utils;
+import com.xpn.xwiki.web.XWikiRequest;
+import com.xpn.xwiki.web.XWikiResponse;
+import com.xwiki.authentication.saml.XWikiSAML20Authenticator;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import javax.servlet.http.HttpSession;
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.LoggerFactory;
+import org.xwiki.component.manager.ComponentManager;
+import org.xwiki.configuration.ConfigurationSource;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.reference.DocumentReferenceResolver;
+import org.xwiki.model.reference.EntityReferenceSerializer;
+import org.xwiki.observation.ObservationManager;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.mockito.Mockito.withSettings;
+
+// XWikiSAML20Authenticator wired to the components it looks up, over XWikiMock and a LocalIdentityProvider.
+// Every user "<name>@..." already exists as XWiki.<Name>, like returning users logging in after a restart.
+public class SamlLoginEnvironment {
+    public static final String WIKI = "xwiki";
+    public static final String SP_ENTITY_ID = "https://wiki.example.com/saml";
+    public static final String ACS_URL = "https://wiki.example.com/xwiki/bin/loginsubmit/XWiki/XWikiLogin";
+    public final LocalIdentityProvider identityProvider;
+    private final XWikiContext mainContext = new XWikiContext();
+    private final XWikiMock xwiki = new XWikiMock(mainContext);
+    private final XWikiSAML20Authenticator authenticator;
+
+    public SamlLoginEnvironment(Properties properties) throws Exception {
+        ((Logger) LoggerFactory.getLogger(org.slf4j.Logger.ROOT_LOGGER_NAME)).setLevel(Level.OFF);
+
+        identityProvider = new LocalIdentityProvider(SP_ENTITY_ID, ACS_URL);
+        mainContext.setWiki(xwiki);
+        mainContext.setWikiId(WIKI);
+        mainContext.setMainXWiki(WIKI);
+        xwiki.setStore(setupStore());
+        setupComponents(configuration(properties));
+        authenticator = new XWikiSAML20Authenticator();
+    }
+
+    private XWikiStoreInterface setupStore() throws XWikiException {
+        final XWikiStoreInterface store = stub(XWikiStoreInterface.class);
+        when(store.loadXWikiDoc(any(), any())).thenAnswer(invocation -> (XWikiDocument) invocation.getArgument(0));
+        when(store.exists(any(), any())).thenReturn(true);
+        when(store.search(anyString(), anyInt(), anyInt(), any(List.class), any())).thenAnswer(invocation ->
+                Collections.singletonList(userNameFor((String) ((List<?>) invocation.getArgument(3)).get(2))));
+        return store;
+    }
+
+    private ConfigurationSource configuration(Properties properties) throws Exception {
+        final Properties configuration = new Properties();
+        configuration.setProperty("xwiki.authentication.saml2.sp.entityid", SP_ENTITY_ID);
+        configuration.setProperty("xwiki.authentication.saml2.sp.assertion_consumer_service.url", ACS_URL);
+        configuration.setProperty("xwiki.authentication.saml2.idp.entityid", LocalIdentityProvider.ENTITY_ID);
+        configuration.setProperty("xwiki.authentication.saml2.idp.single_sign_on_service.url",
+                LocalIdentityProvider.SINGLE_SIGN_ON_URL);
+        configuration.setProperty("xwiki.authentication.saml2.idp.x509cert", identityProvider.getCertificate());
+        for (String name : properties.stringPropertyNames())
+            configuration.setProperty("xwiki.authentication.saml2." + name, properties.getProperty(name));
+
+        final ConfigurationSourceWithProperties cfg = new ConfigurationSourceWithProperties();
+        cfg.setFromProperties(configuration);
+        return cfg;
+    }
+
+    private static void setupComponents(ConfigurationSource cfg) throws Exception {
+        final ComponentManager globalCm = stub(ComponentManager.class);
+        final ComponentManager contextCm = stub(ComponentManager.class);
+        final ObservationManager observationManager = stub(ObservationManager.class);
+        final DocumentReferenceResolver<String> currentMixed =
+                (name, parameters) -> new DocumentReference(WIKI, "XWiki", name.substring(name.lastIndexOf('.') + 1));
+        final EntityReferenceSerializer<String> compactWiki =
+                (reference, parameters) -> reference.getParent().getName() + "." + reference.getName();
+        @SuppressWarnings("rawtypes")
+        final EntityReferenceSerializer local = (reference, parameters) -> reference + "";
+
+        Utils.setComponentManager(globalCm);
+        when(globalCm.getInstance(ComponentManager.class, "context")).thenReturn(contextCm);
+        when(contextCm.getInstance(DocumentReferenceResolver.TYPE_STRING, "currentmixed")).thenReturn(currentMixed);
+        when(contextCm.getInstance(EntityReferenceSerializer.TYPE_STRING, "compactwiki")).thenReturn(compactWiki);
+        when(contextCm.getInstance(EntityReferenceSerializer.TYPE_STRING, "local")).thenReturn(local);
+        when(contextCm.getInstance(ConfigurationSource.class, "xwikicfg")).thenReturn(cfg);
+        when(contextCm.getInstance(ObservationManager.class)).thenReturn(observationManager);
+        when(contextCm.getInstance(ObservationManager.class, "default")).thenReturn(observationManager);
+    }
+
+    public static String nameIdFor(int user) {
+        return "user" + user + "@example.com";
+    }
+
+    static String userNameFor(String nameId) {
+        return StringUtils.capitalize(StringUtils.substringBefore(nameId, "@"));
+    }
+
+    public LoginRequest loginRequest(String nameId, Map<String, List<String>> attributes) throws Exception {
+        return loginRequest(identityProvider.signedResponse(nameId, attributes));
+    }
+
+    public LoginRequest loginRequest(String samlResponse) {
+        return new LoginRequest(samlResponse);
+    }
+
+    public XWikiSAML20Authenticator getAuthenticator() {
+        return authenticator;
+    }
+
+    // the request of the browser posting the SAMLResponse to the assertion consumer service
+    public class LoginRequest {
+        public final XWikiContext context = new XWikiContext();
+
+        LoginRequest(String samlResponse) {
+            final XWikiRequest request = stub(XWikiRequest.class);
+            final HttpSession session = stub(HttpSession.class);
+            when(request.getParameter("SAMLResponse")).thenReturn(samlResponse);
+            when(request.getParameterMap()).thenReturn(Collections.singletonMap("SAMLResponse", new String[] {samlResponse}));
+            when(request.getRequestURL()).thenAnswer(invocation -> new StringBuffer(ACS_URL));
+            when(request.getSession()).thenReturn(session);
+            when(request.getSession(true)).thenReturn(session);
+
+            context.setWiki(xwiki);
+            context.setWikiId(WIKI);
+            context.setMainXWiki(WIKI);
+            context.setAction("loginsubmit");
+            context.setRequest(request);
+            context.setResponse(stub(XWikiResponse.class));
+        }
+
+        public XWikiUser login() throws XWikiException {
+            return authenticator.checkAuth(context);
+        }
+    }
+
+    private static <T> T stub(Class<T> type) {
+        return mock(type, withSettings().stubOnly());
+    }
+}
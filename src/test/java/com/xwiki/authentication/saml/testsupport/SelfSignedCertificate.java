@@ -0,0 +1,115 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.authentication.saml.testsupport;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.Signature;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+
+// Minimal DER encoding of a version 1 X.509 certificate, so tests need neither keytool nor BouncyCastle
+public final class SelfSignedCertificate {
+    private static final int[] SHA256_WITH_RSA = {1, 2, 840, 113549, 1, 1, 11};
+    private static final int[] COMMON_NAME = {2, 5, 4, 3};
+    private static final DateTimeFormatter UTC_TIME = DateTimeFormatter.ofPattern("yyMMddHHmmss'Z'").withZone(ZoneOffset.UTC);
+    private static final int INTEGER = 0x02;
+    private static final int BIT_STRING = 0x03;
+    private static final int NULL = 0x05;
+    private static final int OBJECT_IDENTIFIER = 0x06;
+    private static final int UTF8_STRING = 0x0c;
+    private static final int UTC_TIME_TAG = 0x17;
+    private static final int SEQUENCE = 0x30;
+    private static final int SET = 0x31;
+
+    private SelfSignedCertificate() {
+    }
+
+    public static X509Certificate generate(KeyPair keyPair, String commonName, Duration validity)
+            throws GeneralSecurityException {
+        final Instant now = Instant.now();
+        final byte[] algorithm = tlv(SEQUENCE, oid(SHA256_WITH_RSA), tlv(NULL));
+        final byte[] name = tlv(SEQUENCE, tlv(SET, tlv(SEQUENCE, oid(COMMON_NAME),
+                tlv(UTF8_STRING, commonName.getBytes(StandardCharsets.UTF_8)))));
+        final byte[] tbsCertificate = tlv(SEQUENCE,
+                tlv(INTEGER, BigInteger.valueOf(now.toEpochMilli()).toByteArray()),
+                algorithm,
+                name,
+                tlv(SEQUENCE, utcTime(now.minus(Duration.ofMinutes(5))), utcTime(now.plus(validity))),
+                name,
+                keyPair.getPublic().getEncoded());
+
+        final Signature signature = Signature.getInstance("SHA256withRSA");
+        signature.initSign(keyPair.getPrivate());
+        signature.update(tbsCertificate);
+        final byte[] certificate = tlv(SEQUENCE, tbsCertificate, algorithm,
+                tlv(BIT_STRING, new byte[] {0}, signature.sign()));
+
+        return (X509Certificate) CertificateFactory.getInstance("X.509")
+                .generateCertificate(new ByteArrayInputStream(certificate));
+    }
+
+    private static byte[] utcTime(Instant instant) {
+        return tlv(UTC_TIME_TAG, UTC_TIME.format(instant).getBytes(StandardCharsets.US_ASCII));
+    }
+
+    private static byte[] oid(int[] arcs) {
+        final ByteArrayOutputStream value = new ByteArrayOutputStream();
+        value.write(arcs[0] * 40 + arcs[1]);
+        for (int i = 2; i < arcs.length; i++) {
+            int arc = arcs[i];
+            int shift = 28;
+            while (shift > 0 && (arc >>> shift) == 0)
+                shift -= 7;
+            for (; shift > 0; shift -= 7)
+                value.write(0x80 | ((arc >>> shift) & 0x7f));
+            value.write(arc & 0x7f);
+        }
+        return tlv(OBJECT_IDENTIFIER, value.toByteArray());
+    }
+
+    private static byte[] tlv(int tag, byte[]... contents) {
+        final ByteArrayOutputStream value = new ByteArrayOutputStream();
+        for (byte[] content : contents)
+            value.write(content, 0, content.length);
+
+        final ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+        encoded.write(tag);
+        final int length = value.size();
+        if (length < 0x80) {
+            encoded.write(length);
+        } else {
+            final byte[] lengthBytes = BigInteger.valueOf(length).toByteArray();
+            final int offset = lengthBytes[0] == 0 ? 1 : 0;
+            encoded.write(0x80 | (lengthBytes.length - offset));
+            encoded.write(lengthBytes, offset, lengthBytes.length - offset);
+        }
+        encoded.write(value.toByteArray(), 0, length);
+        return encoded.toByteArray();
+    }
+}
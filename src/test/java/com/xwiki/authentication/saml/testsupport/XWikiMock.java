@@ -21,6 +21,7 @@ package com.xwiki.authentication.saml.testsupport;
 
 import com.xpn.xwiki.XWiki;
 import com.xpn.xwiki.XWikiContext;
+import com.xpn.xwiki.XWikiException;
 import com.xpn.xwiki.doc.XWikiDocument;
 import com.xpn.xwiki.objects.BaseObject;
 import com.xpn.xwiki.objects.StringProperty;
@@ -45,17 +46,22 @@ import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.withSettings;
 
 public class XWikiMock extends XWiki {
 
-    public final Set<XWikiDocument> savedDocuments = new LinkedHashSet<>();
+    // collections are synchronized, the login load driver shares one instance between its threads
+    public final Set<XWikiDocument> savedDocuments = Collections.synchronizedSet(new LinkedHashSet<>());
     private final BaseClass groupClass;
-    private final Map<DocumentReference, XWikiDocument> docByReference = new LinkedHashMap<>();
+    private final Map<DocumentReference, XWikiDocument> docByReference = Collections.synchronizedMap(new LinkedHashMap<>());
+    private final XWikiContext context;
 
-    public final BaseObject baseObjectMock = mock(BaseObject.class);
-    private final Map<String, String> savedUserAttributes = new LinkedHashMap<>();
+    // stub only, benchmarks call it millions of times and recorded invocations would never be released
+    public final BaseObject baseObjectMock = mock(BaseObject.class, withSettings().stubOnly());
+    private final Map<String, String> savedUserAttributes = Collections.synchronizedMap(new LinkedHashMap<>());
 
     public XWikiMock(XWikiContext context) {
+        this.context = context;
         groupClass = new BaseClass() {
             public DocumentReference getDocumentReference() {
                 return new DocumentReference(context.getWikiId(), "XWiki:", "XWikiGroups");
@@ -105,7 +111,18 @@ public class XWikiMock extends XWiki {
         return docByReference.computeIfAbsent(reference, this::createDocumentForReference);
     }
 
+    // like XWiki, documents missing from the store are returned as new documents
     private XWikiDocument createDocumentForReference(DocumentReference reference) {
+        final XWikiDocument document = newDocumentForReference(reference);
+        try {
+            document.setNew(getStore() == null || !getStore().exists(document, context));
+        } catch (XWikiException e) {
+            throw new IllegalStateException(e);
+        }
+        return document;
+    }
+
+    private XWikiDocument newDocumentForReference(DocumentReference reference) {
         return new XWikiDocument(new DocumentReference(reference, (Locale) null), reference.getLocale()) {
             public final Map<String, List<BaseObject>> createdObjectsByEntity = new LinkedHashMap<>();
 
@@ -117,7 +134,9 @@ public class XWikiMock extends XWiki {
                         return new DocumentReference(new EntityReference(classReference));
                     }
                 };
-                createdObjectsByEntity.get(classReference.toString()).add(obj);
+                final List<BaseObject> objects = createdObjectsByEntity.get(classReference.toString());
+                obj.setNumber(objects.size());
+                objects.add(obj);
                 return obj;
             }
 
@@ -128,14 +147,25 @@ public class XWikiMock extends XWiki {
             public BaseObject getXObject(DocumentReference classReference, String key, String value) {
                 createdObjectsByEntity.putIfAbsent(classReference.toString(), new ArrayList<>());
 
-                return createdObjectsByEntity.get(classReference.toString()).stream().filter(obj ->
+                return createdObjectsByEntity.get(classReference.toString()).stream().filter(obj -> obj != null &&
                         ((StringProperty) obj.safeget(key)).getValue().equals(value)
                 ).findFirst().orElse(null);
             }
 
+            @Override
+            public BaseObject getXObject(DocumentReference classReference, int number) {
+                final List<BaseObject> objects = createdObjectsByEntity.get(classReference.toString());
+                return objects == null || number < 0 || number >= objects.size() ? null : objects.get(number);
+            }
+
+            // like XWikiDocument, keep the slot of the removed object so other object numbers don't change
             @Override
             public boolean removeXObject(BaseObject object) {
-                createdObjectsByEntity.get(object.getXClassReference().toString()).remove(object);
+                final List<BaseObject> objects = createdObjectsByEntity.get(object.getXClassReference().toString());
+                final int index = objects.indexOf(object);
+                if (index < 0)
+                    return false;
+                objects.set(index, null);
                 return true;
             }
 
@@ -145,7 +175,12 @@ public class XWikiMock extends XWiki {
         };
     }
 
-    public void saveDocument(XWikiDocument doc, XWikiContext context) {
+    // the next getDocument loads the document again, like XWiki does after a failed save
+    public void discardDocument(DocumentReference reference) {
+        docByReference.remove(reference);
+    }
+
+    public void saveDocument(XWikiDocument doc, XWikiContext context) throws XWikiException {
         savedDocuments.add(doc);
     }
 
@@ -0,0 +1,190 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.authentication.saml.xwiki;
+
+import com.onelogin.saml2.Auth;
+import com.xpn.xwiki.XWikiContext;
+import com.xpn.xwiki.XWikiException;
+import com.xwiki.authentication.saml.samlauth.Saml2XWikiAttributes;
+import com.xwiki.authentication.saml.samlauth.SamlAuthConfig;
+import com.xwiki.authentication.saml.samlauth.SamlXwikiAttributesExtractor;
+import com.xwiki.authentication.saml.testsupport.ConfigurationSourceWithProperties;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.xwiki.model.reference.DocumentReference;
+
+import static java.util.Collections.singletonList;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class AsyncGroupSynchronizerTest {
+    private static final DocumentReference ARTHUR = new DocumentReference("xwiki", "XWiki", "ArthurDent");
+    private static final DocumentReference FORD = new DocumentReference("xwiki", "XWiki", "FordPrefect");
+    private static final DocumentReference ZAPHOD = new DocumentReference("xwiki", "XWiki", "ZaphodBeeblebrox");
+    private final SamlAuthConfig authConfig = SamlAuthConfig.from(new ConfigurationSourceWithProperties());
+    private final XWikiContext context = new XWikiContext();
+    private final List<String> synchronizations = Collections.synchronizedList(new ArrayList<>());
+    private final CountDownLatch firstSyncStarted = new CountDownLatch(1);
+    private final CountDownLatch releaseFirstSync = new CountDownLatch(1);
+    private final AtomicInteger backgroundRuns = new AtomicInteger();
+    private AsyncGroupSynchronizer synchronizer;
+
+    @AfterEach
+    public void tearDown() {
+        releaseFirstSync.countDown();
+        if (synchronizer != null)
+            synchronizer.shutdown();
+    }
+
+    @Test
+    public void whenUserLogsInAgainWhileSynchronized_ShouldOnlyApplyTheLatestGroups() throws Exception {
+        synchronizer = synchronizer(blockingFirstSync(), 1, 10, 0);
+
+        synchronizer.submit(ARTHUR, attributes("Vogons"), context);
+        assertTrue(firstSyncStarted.await(10, TimeUnit.SECONDS));
+        synchronizer.submit(ARTHUR, attributes("Dolphins"), context);
+        synchronizer.submit(ARTHUR, attributes("Mice"), context);
+        assertEquals(1, synchronizer.getPendingCount());
+        releaseFirstSync.countDown();
+        synchronizer.shutdown();
+
+        assertEquals(Arrays.asList("ArthurDent:Vogons", "ArthurDent:Mice"), synchronizations);
+        assertEquals(0, synchronizer.getPendingCount());
+    }
+
+    @Test
+    public void whenSynchronizationFails_ShouldRetryIt() {
+        final AtomicInteger attempts = new AtomicInteger();
+        synchronizer = synchronizer((userReference, attributes, context) -> {
+            if (attempts.incrementAndGet() < 3)
+                throw new XWikiException("Concurrent save of the group", new Throwable());
+            return record(userReference, attributes);
+        }, 1, 10, 3);
+
+        synchronizer.submit(ARTHUR, attributes("Vogons"), context);
+        synchronizer.shutdown();
+
+        assertEquals(3, attempts.get());
+        assertEquals(singletonList("ArthurDent:Vogons"), synchronizations);
+    }
+
+    @Test
+    public void whenSynchronizationKeepsFailing_ShouldGiveUpAfterTheRetries() {
+        final AtomicInteger attempts = new AtomicInteger();
+        synchronizer = synchronizer((userReference, attributes, context) -> {
+            attempts.incrementAndGet();
+            throw new IllegalStateException("Database is gone");
+        }, 1, 10, 1);
+
+        synchronizer.submit(ARTHUR, attributes("Vogons"), context);
+        synchronizer.shutdown();
+
+        assertEquals(2, attempts.get());
+        assertEquals(0, synchronizer.getPendingCount());
+    }
+
+    @Test
+    public void whenShuttingDown_ShouldCompleteThePendingSynchronizations() throws Exception {
+        synchronizer = synchronizer(blockingFirstSync(), 1, 10, 0);
+        synchronizer.submit(ARTHUR, attributes("Vogons"), context);
+        assertTrue(firstSyncStarted.await(10, TimeUnit.SECONDS));
+        synchronizer.submit(FORD, attributes("Hitchhikers"), context);
+        synchronizer.submit(ZAPHOD, attributes("Presidents"), context);
+
+        final Thread shutdown = new Thread(synchronizer::shutdown);
+        shutdown.start();
+        releaseFirstSync.countDown();
+        shutdown.join(TimeUnit.SECONDS.toMillis(30));
+
+        assertFalse(synchronizer.isEnabled());
+        assertEquals(Arrays.asList("ArthurDent:Vogons", "FordPrefect:Hitchhikers", "ZaphodBeeblebrox:Presidents"),
+                synchronizations);
+    }
+
+    @Test
+    public void whenQueueIsFull_ShouldSynchronizeInTheRequestWithoutAnotherExecutionContext() throws Exception {
+        final List<String> threads = Collections.synchronizedList(new ArrayList<>());
+        final AsyncGroupSynchronizer.SyncTask blocking = blockingFirstSync();
+        synchronizer = synchronizer((userReference, attributes, context) -> {
+            threads.add(userReference.getName() + ":" + Thread.currentThread().getName());
+            return blocking.sync(userReference, attributes, context);
+        }, 1, 1, 0);
+        synchronizer.submit(ARTHUR, attributes("Vogons"), context);
+        assertTrue(firstSyncStarted.await(10, TimeUnit.SECONDS));
+        synchronizer.submit(FORD, attributes("Hitchhikers"), context);
+
+        synchronizer.submit(ZAPHOD, attributes("Presidents"), context);
+
+        assertEquals("ZaphodBeeblebrox:" + Thread.currentThread().getName(), threads.get(1));
+        assertEquals(1, backgroundRuns.get());
+        releaseFirstSync.countDown();
+        synchronizer.shutdown();
+        assertEquals(2, backgroundRuns.get());
+    }
+
+    private AsyncGroupSynchronizer synchronizer(AsyncGroupSynchronizer.SyncTask syncTask, int threads, int queueSize,
+                                                int maxRetries) {
+        return new AsyncGroupSynchronizer(syncTask, (context, task) -> {
+            backgroundRuns.incrementAndGet();
+            task.run();
+        }, threads, queueSize, maxRetries);
+    }
+
+    private AsyncGroupSynchronizer.SyncTask blockingFirstSync() {
+        return (userReference, attributes, context) -> {
+            if (firstSyncStarted.getCount() > 0) {
+                firstSyncStarted.countDown();
+                try {
+                    releaseFirstSync.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            return record(userReference, attributes);
+        };
+    }
+
+    private GroupSyncResult record(DocumentReference userReference, Saml2XWikiAttributes attributes) {
+        synchronizations.add(userReference.getName() + ":" + attributes.groupsFromSaml.iterator().next());
+        return null;
+    }
+
+    // the default group comes last, so the first group is the one sent by the IDP
+    private Saml2XWikiAttributes attributes(String group) {
+        final Map<String, List<String>> samlAttributes = new LinkedHashMap<>();
+        samlAttributes.put(authConfig.groupsAttributeName, singletonList(group));
+        final Auth auth = mock(Auth.class);
+        when(auth.getNameId()).thenReturn("arthur.dent@dontpanic.com");
+        when(auth.getAttributes()).thenReturn(samlAttributes);
+        return new SamlXwikiAttributesExtractor(authConfig).extractXWikiAttributesFromSaml(auth);
+    }
+}
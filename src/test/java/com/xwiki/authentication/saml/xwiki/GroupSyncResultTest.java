@@ -0,0 +1,50 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.authentication.saml.xwiki;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+public class GroupSyncResultTest {
+    @Test
+    public void whenSynchronizationIsSkipped_ShouldOnlyCountTheUserSave() {
+        final GroupSyncResult result = GroupSyncResult.skipped();
+
+        assertEquals(0, result.documentsWritten);
+        assertEquals(1, result.writesAvoided);
+    }
+
+    @Test
+    public void whenUserIsAddedToGroups_ShouldNotCountTheGroupsAlreadyContainingTheUser() {
+        final GroupSyncResult result = new GroupSyncResult(2, 0, 0, true);
+
+        assertEquals(3, result.documentsWritten);
+        assertEquals(0, result.writesAvoided);
+    }
+
+    @Test
+    public void whenUserWasAlreadyRemovedFromGroups_ShouldCountTheRemovalsNotWritten() {
+        final GroupSyncResult result = new GroupSyncResult(0, 1, 3, true);
+
+        assertEquals(2, result.documentsWritten);
+        assertEquals(2, result.writesAvoided);
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.authentication.saml.xwiki;
+
+import com.xpn.xwiki.XWikiContext;
+import com.xpn.xwiki.XWikiException;
+import com.xpn.xwiki.doc.XWikiDocument;
+import com.xpn.xwiki.store.XWikiStoreInterface;
+import com.xwiki.authentication.saml.testsupport.XWikiMock;
+import org.junit.jupiter.api.Test;
+import org.xwiki.model.reference.DocumentReference;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class GroupTest {
+    private static final DocumentReference GROUP = new DocumentReference("xwiki", "XWiki", "StarshipTroopers");
+    private static final String USER = "XWiki.ArthurDent";
+    private final XWikiContext context = new XWikiContext();
+    private final FailingSavesXWiki xwiki = new FailingSavesXWiki(context);
+    private final GroupMembershipIndex membershipIndex = new GroupMembershipIndex();
+
+    public GroupTest() throws XWikiException {
+        final XWikiStoreInterface store = mock(XWikiStoreInterface.class);
+        when(store.exists(any(), any())).thenReturn(true);
+        context.setWikiId("xwiki");
+        context.setWiki(xwiki);
+        xwiki.setStore(store);
+    }
+
+    @Test
+    public void whenAddedMemberIsNotSaved_ShouldNotBeIndexedAsMember() throws XWikiException {
+        final Group group = loadGroup();
+        group.addMember(USER);
+        assertTrue(group.hasMember(USER));
+
+        xwiki.failSaves = true;
+        assertThrows(XWikiException.class, group::save);
+        xwiki.discardDocument(GROUP);
+
+        assertFalse(loadGroup().hasMember(USER));
+    }
+
+    @Test
+    public void whenRemovedMemberIsNotSaved_ShouldStillBeIndexedAsMember() throws XWikiException {
+        final Group group = loadGroup();
+        group.addMember(USER);
+        group.save();
+
+        final Group sameGroup = loadGroup();
+        assertTrue(sameGroup.removeUser(USER));
+        assertFalse(sameGroup.hasMember(USER));
+
+        xwiki.failSaves = true;
+        assertThrows(XWikiException.class, sameGroup::save);
+        xwiki.discardDocument(GROUP);
+
+        assertTrue(loadGroup().hasMember(USER));
+    }
+
+    @Test
+    public void whenChangesAreSaved_ShouldBeIndexed() throws XWikiException {
+        final Group group = loadGroup();
+        group.addMember(USER);
+        group.save();
+        assertTrue(loadGroup().hasMember(USER));
+
+        final Group sameGroup = loadGroup();
+        sameGroup.removeUser(USER);
+        sameGroup.save();
+        assertFalse(loadGroup().hasMember(USER));
+    }
+
+    private Group loadGroup() throws XWikiException {
+        return new Group(GROUP, context, membershipIndex);
+    }
+
+    private static class FailingSavesXWiki extends XWikiMock {
+        boolean failSaves;
+
+        FailingSavesXWiki(XWikiContext context) {
+            super(context);
+        }
+
+        @Override
+        public void saveDocument(XWikiDocument doc, XWikiContext context) throws XWikiException {
+            if (failSaves)
+                throw new XWikiException("Failed to save document", new Throwable());
+            super.saveDocument(doc, context);
+        }
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.authentication.saml.xwiki;
+
+import com.xpn.xwiki.XWiki;
+import com.xpn.xwiki.XWikiContext;
+import com.xpn.xwiki.XWikiException;
+import com.xpn.xwiki.doc.XWikiDocument;
+import org.junit.jupiter.api.Test;
+import org.xwiki.model.reference.DocumentReference;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class LoginUnitOfWorkTest {
+    private static final DocumentReference USER = new DocumentReference("xwiki", "XWiki", "JohnDoe");
+    private final XWikiContext context = new XWikiContext();
+    private final XWiki xwiki = mock(XWiki.class);
+    private final XWikiDocument userDoc = new XWikiDocument(USER);
+    private final LoginUnitOfWork unitOfWork = new LoginUnitOfWork(context);
+
+    public LoginUnitOfWorkTest() throws XWikiException {
+        context.setWikiId("subwiki");
+        context.setWiki(xwiki);
+        when(xwiki.getDocument(eq(USER), any(XWikiContext.class))).thenReturn(userDoc);
+    }
+
+    @Test
+    public void whenDocumentIsUsedSeveralTimes_ShouldLoadItOnce() throws XWikiException {
+        userDoc.setNew(false);
+
+        assertTrue(unitOfWork.exists(USER));
+        assertSame(userDoc, unitOfWork.getDocument(USER));
+        assertSame(userDoc, unitOfWork.getDocument(USER));
+
+        verify(xwiki, times(1)).getDocument(eq(USER), any(XWikiContext.class));
+        verify(xwiki, never()).exists(any(DocumentReference.class), any());
+        assertEquals(1, unitOfWork.getReads());
+    }
+
+    @Test
+    public void whenDocumentIsMissing_ShouldNotExist() throws XWikiException {
+        userDoc.setNew(true);
+
+        assertFalse(unitOfWork.exists(USER));
+    }
+
+    @Test
+    public void whenDocumentIsMarkedDirtySeveralTimes_ShouldSaveItOnce() throws XWikiException {
+        final XWikiDocument document = unitOfWork.getDocument(USER);
+        unitOfWork.markDirty(document);
+        unitOfWork.markDirty(document);
+
+        unitOfWork.flush();
+        unitOfWork.flush();
+
+        verify(xwiki, times(1)).saveDocument(userDoc, context);
+        assertEquals(1, unitOfWork.getWrites());
+        assertEquals("subwiki", context.getWikiId());
+    }
+
+    @Test
+    public void whenDocumentIsReloaded_ShouldDropPendingChanges() throws XWikiException {
+        unitOfWork.markDirty(unitOfWork.getDocument(USER));
+
+        unitOfWork.reload(USER);
+        unitOfWork.flush();
+
+        verify(xwiki, never()).saveDocument(any(XWikiDocument.class), any(XWikiContext.class));
+        assertEquals(2, unitOfWork.getReads());
+        assertEquals(0, unitOfWork.getWrites());
+    }
+}
@@ -0,0 +1,65 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.authentication.saml.xwiki;
+
+import com.xwiki.authentication.saml.xwiki.ResolvedPrincipalCache.ResolvedPrincipal;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import org.junit.jupiter.api.Test;
+import org.xwiki.model.reference.DocumentReference;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+public class ResolvedPrincipalCacheTest {
+    private final AtomicInteger resolutions = new AtomicInteger();
+
+    @Test
+    public void whenUserIsResolvedTwiceInSameWiki_ShouldResolveOnlyOnce() {
+        final ResolvedPrincipalCache cache = new ResolvedPrincipalCache(10);
+
+        final ResolvedPrincipal first = cache.resolve("ArthurDent", "xwiki", true, resolverFor("xwiki"));
+        final ResolvedPrincipal second = cache.resolve("ArthurDent", "xwiki", true, resolverFor("xwiki"));
+
+        assertSame(first, second);
+        assertEquals(new DocumentReference("xwiki", "XWiki", "ArthurDent"), second.userReference);
+        assertEquals(1, resolutions.get());
+    }
+
+    @Test
+    public void whenUserMovesToAnotherWiki_ShouldResolveAgainstThatWiki() {
+        final ResolvedPrincipalCache cache = new ResolvedPrincipalCache(10);
+        cache.resolve("ArthurDent", "xwiki", true, resolverFor("xwiki"));
+
+        final ResolvedPrincipal principal = cache.resolve("ArthurDent", "subwiki", false, resolverFor("subwiki"));
+
+        assertEquals(new DocumentReference("subwiki", "XWiki", "ArthurDent"), principal.userReference);
+        assertFalse(principal.mainWiki);
+        assertEquals(2, resolutions.get());
+    }
+
+    private Function<String, DocumentReference> resolverFor(String wikiId) {
+        return userName -> {
+            resolutions.incrementAndGet();
+            return new DocumentReference(wikiId, "XWiki", userName);
+        };
+    }
+}
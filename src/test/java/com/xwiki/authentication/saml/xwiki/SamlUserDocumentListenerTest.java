@@ -0,0 +1,66 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.authentication.saml.xwiki;
+
+import com.xpn.xwiki.doc.XWikiDocument;
+import com.xpn.xwiki.objects.BaseObject;
+import java.util.Optional;
+import org.junit.jupiter.api.Test;
+import org.xwiki.bridge.event.DocumentDeletedEvent;
+import org.xwiki.model.reference.DocumentReference;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class SamlUserDocumentListenerTest {
+    private static final DocumentReference ARTHUR = new DocumentReference("xwiki", "XWiki", "ArthurDent");
+    private final UserReferenceCache userReferenceCache = new UserReferenceCache(10, 60_000);
+    private final SamlUserDocumentListener listener = new SamlUserDocumentListener(userReferenceCache);
+
+    @Test
+    public void whenSamlUserIsDeleted_ShouldEvictItFromTheCache() {
+        userReferenceCache.put("xwiki:arthur.dent@dontpanic.com", ARTHUR);
+
+        listener.onEvent(new DocumentDeletedEvent(), deleted(ARTHUR, true), null);
+
+        assertFalse(userReferenceCache.get("xwiki:arthur.dent@dontpanic.com").isPresent());
+    }
+
+    @Test
+    public void whenDeletedDocumentIsNotASamlUser_ShouldKeepTheCache() {
+        userReferenceCache.put("xwiki:arthur.dent@dontpanic.com", ARTHUR);
+
+        listener.onEvent(new DocumentDeletedEvent(), deleted(ARTHUR, false), null);
+
+        assertEquals(Optional.of(ARTHUR), userReferenceCache.get("xwiki:arthur.dent@dontpanic.com"));
+    }
+
+    // like XWiki, the event source is an empty document and the deleted one is its original document
+    private static XWikiDocument deleted(DocumentReference reference, boolean samlUser) {
+        final XWikiDocument original = mock(XWikiDocument.class);
+        when(original.getXObject(XWikiUserManager.SAML_XCLASS)).thenReturn(samlUser ? mock(BaseObject.class) : null);
+        final XWikiDocument document = mock(XWikiDocument.class);
+        when(document.getDocumentReference()).thenReturn(reference);
+        when(document.getOriginalDocument()).thenReturn(original);
+        return document;
+    }
+}
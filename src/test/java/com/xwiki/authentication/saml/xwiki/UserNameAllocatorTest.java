@@ -0,0 +1,86 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.authentication.saml.xwiki;
+
+import com.xpn.xwiki.XWiki;
+import com.xpn.xwiki.XWikiContext;
+import com.xpn.xwiki.XWikiException;
+import com.xpn.xwiki.store.XWikiStoreInterface;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+import org.xwiki.model.reference.DocumentReference;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class UserNameAllocatorTest {
+    private final XWikiContext context = new XWikiContext();
+    private final XWiki xwiki = mock(XWiki.class);
+    private final XWikiStoreInterface store = mock(XWikiStoreInterface.class);
+    private final UserNameAllocator allocator = new UserNameAllocator("XWiki", 100);
+
+    public UserNameAllocatorTest() {
+        context.setWikiId("xwiki");
+        context.setWiki(xwiki);
+        when(xwiki.getStore()).thenReturn(store);
+    }
+
+    @Test
+    public void whenBaseNameIsFree_ShouldAllocateItAndThenSuffixesWithoutQueryingAgain() throws XWikiException {
+        existingNames();
+
+        assertEquals("JohnDoe", allocator.allocate("JohnDoe", context));
+        assertEquals("JohnDoe1", allocator.allocate("JohnDoe", context));
+        assertEquals("JohnDoe2", allocator.allocate("JohnDoe", context));
+        verify(store, times(1)).search(anyString(), anyInt(), anyInt(), any(List.class), any());
+    }
+
+    @Test
+    public void whenSuffixedNamesExist_ShouldAllocateAfterTheHighestSuffix() throws XWikiException {
+        existingNames("JohnDoe", "JohnDoe3", "JohnDoeSmith", "JohnDoe12b");
+
+        assertEquals("JohnDoe4", allocator.allocate("JohnDoe", context));
+    }
+
+    @Test
+    public void whenAllocatedNameWasCreatedElsewhere_ShouldReloadTheIndex() throws XWikiException {
+        existingNames("JohnDoe");
+        allocator.allocate("JohnDoe", context);
+        existingNames("JohnDoe", "JohnDoe1", "JohnDoe2");
+        when(xwiki.exists(eq(new DocumentReference("xwiki", "XWiki", "JohnDoe2")), any())).thenReturn(true);
+
+        assertEquals("JohnDoe3", allocator.allocate("JohnDoe", context));
+    }
+
+    @SuppressWarnings("unchecked")
+    private void existingNames(String... names) throws XWikiException {
+        final List<String> result = names.length == 0 ? Collections.emptyList() : Arrays.asList(names);
+        when(store.search(anyString(), anyInt(), anyInt(), any(List.class), any())).thenReturn((List) result);
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.authentication.saml.xwiki;
+
+import java.util.Locale;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.jupiter.api.Test;
+import org.xwiki.model.reference.DocumentReference;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
+public class UserReferenceCacheTest {
+    private static final DocumentReference ARTHUR = new DocumentReference("xwiki", "XWiki", "ArthurDent");
+    private static final DocumentReference FORD = new DocumentReference("xwiki", "XWiki", "FordPrefect");
+
+    private final AtomicLong now = new AtomicLong();
+
+    @Test
+    public void whenNameIdWasCached_ShouldReturnReferenceAndCountHit() {
+        final UserReferenceCache cache = new UserReferenceCache(10, 1000, now::get);
+        cache.put("arthur", ARTHUR);
+
+        assertEquals(Optional.of(ARTHUR), cache.get("arthur"));
+        assertEquals(1, cache.getHitCount());
+        assertEquals(0, cache.getMissCount());
+    }
+
+    @Test
+    public void whenEntryIsOlderThanTtl_ShouldMissAndEvict() {
+        final UserReferenceCache cache = new UserReferenceCache(10, 1000, now::get);
+        cache.put("arthur", ARTHUR);
+        now.set(1000);
+
+        assertFalse(cache.get("arthur").isPresent());
+        assertEquals(1, cache.getMissCount());
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void whenCacheIsFull_ShouldEvictLeastRecentlyUsedEntry() {
+        final UserReferenceCache cache = new UserReferenceCache(1, 1000, now::get);
+        cache.put("arthur", ARTHUR);
+        cache.put("ford", FORD);
+
+        assertFalse(cache.get("arthur").isPresent());
+        assertEquals(Optional.of(FORD), cache.get("ford"));
+    }
+
+    @Test
+    public void whenUserDocumentIsInvalidated_ShouldDropEveryNameIdPointingToIt() {
+        final UserReferenceCache cache = new UserReferenceCache(10, 1000, now::get);
+        cache.put("arthur", ARTHUR);
+        cache.put("wiki2:arthur", ARTHUR);
+        cache.put("ford", FORD);
+
+        cache.invalidate(new DocumentReference(ARTHUR, Locale.ENGLISH));
+
+        assertFalse(cache.get("arthur").isPresent());
+        assertFalse(cache.get("wiki2:arthur").isPresent());
+        assertEquals(Optional.of(FORD), cache.get("ford"));
+    }
+
+    @Test
+    public void whenNameIdNowPointsToAnotherUser_ShouldKeepItWhenThePreviousUserIsInvalidated() {
+        final UserReferenceCache cache = new UserReferenceCache(10, 1000, now::get);
+        cache.put("arthur", ARTHUR);
+        cache.put("arthur", FORD);
+
+        cache.invalidate(ARTHUR);
+
+        assertEquals(Optional.of(FORD), cache.get("arthur"));
+    }
+
+    @Test
+    public void whenEvictedNameIdIsCachedForAnotherUser_ShouldKeepItWhenThePreviousUserIsInvalidated() {
+        final UserReferenceCache cache = new UserReferenceCache(1, 1000, now::get);
+        cache.put("arthur", ARTHUR);
+        cache.put("ford", FORD);
+        cache.put("arthur", FORD);
+
+        cache.invalidate(ARTHUR);
+
+        assertEquals(Optional.of(FORD), cache.get("arthur"));
+    }
+}
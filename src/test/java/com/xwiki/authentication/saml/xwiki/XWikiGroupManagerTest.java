@@ -30,6 +30,10 @@ import com.xpn.xwiki.objects.classes.BaseClass;
 import com.xpn.xwiki.web.XWikiRequest;
 import com.xpn.xwiki.web.XWikiResponse;
 import com.xwiki.authentication.saml.testsupport.XWikiMock;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
 import javax.servlet.http.HttpSession;
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.Test;
@@ -41,6 +45,7 @@ import org.xwiki.model.reference.DocumentReferenceResolver;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
 import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.mockito.Mockito.mock;
 
 public class XWikiGroupManagerTest {
@@ -92,6 +97,18 @@ public class XWikiGroupManagerTest {
                 .isntInGroup("StarshipTroopers");
     }
 
+    @Test
+    public void whenRemoveUserFromGroupWhereHeIsnt_ShouldNotSaveTheGroup() throws XWikiException {
+        given()
+            .user("ArthurDent")
+                .exists()
+        .when()
+            .user("ArthurDent").isRemovedFromGroup("StarshipTroopers")
+        .then()
+            .group("StarshipTroopers")
+                .doesntExist();
+    }
+
     @Test
     public void whenUserAlreadyMemberOfGroupAndReceiveAnewGroup_ShouldBeInBothGroups() throws XWikiException {
         given()
@@ -162,6 +179,32 @@ public class XWikiGroupManagerTest {
             .thrownException(new XWikiException("Failed to load document", new Throwable()));
     }
 
+    @Test
+    public void whenMembershipWritesAreCoalesced_ShouldSaveTheGroupOnceWithAllMembers() throws XWikiException {
+        final GivenDSL given = given();
+        final XWikiGroupManager groupManager = new XWikiGroupManager(given.currentMixedDocumentReferenceResolver,
+                TimeUnit.HOURS.toMillis(1), 100);
+        try {
+            groupManager.addUserToGroup("ArthurDent", "StarshipTroopers", given.context);
+            groupManager.addUserToGroup("FordPrefect", "StarshipTroopers", given.context);
+            groupManager.addUserToGroup("Marvin", "StarshipTroopers", given.context);
+            groupManager.removeUserFromGroup("Marvin", "StarshipTroopers", given.context);
+            assertTrue(given.xwiki.getSavedDocuments().isEmpty());
+
+            groupManager.getMembershipWriter().flush();
+
+            final List<XWikiDocument> savedGroups = given.xwiki.getSavedDocuments().stream()
+                    .filter(doc -> doc.toString().equals("XWikiGroups.StarshipTroopers"))
+                    .collect(Collectors.toList());
+            assertEquals(1, savedGroups.size());
+            final DocumentReference groupClass = given.xwiki.getGroupClass(given.context).getDocumentReference();
+            assertNotNull(savedGroups.get(0).getXObject(groupClass, "member", "ArthurDent"));
+            assertNotNull(savedGroups.get(0).getXObject(groupClass, "member", "FordPrefect"));
+            assertNull(savedGroups.get(0).getXObject(groupClass, "member", "Marvin"));
+        } finally {
+            groupManager.getMembershipWriter().shutdown();
+        }
+    }
 
     private GivenDSL given() {
         return new GivenDSL();
@@ -293,24 +336,24 @@ public class XWikiGroupManagerTest {
             }
 
             public ThenDSL isInGroup(String groupName) {
-                final BaseObject obj = findUser(groupName);
-                assertNotNull(obj, "User " + userName + " is not in the group " + groupName);
+                final XWikiDocument groupDoc = findSavedGroup(groupName)
+                        .orElseGet(() -> Assertions.fail("Group " + groupName + " doesn't exist"));
+                assertNotNull(findUser(groupDoc), "User " + userName + " is not in the group " + groupName);
                 return this;
             }
 
             public ThenDSL isntInGroup(String groupName) {
-                BaseObject obj = findUser(groupName);
-                assertNull(obj);
+                findSavedGroup(groupName).ifPresent(groupDoc -> assertNull(findUser(groupDoc)));
 
                 return this;
             }
 
-            private BaseObject findUser(String groupName) {
+            private Optional<XWikiDocument> findSavedGroup(String groupName) {
                 String fullGroupName = "XWikiGroups." + groupName;
-                XWikiDocument groupDoc =
-                        xwiki.getSavedDocuments().stream().filter(doc -> doc.toString().equals(fullGroupName)).findFirst()
-                                .orElseGet(() -> Assertions.fail("Group " + groupName + " doesn't exist"));
+                return xwiki.getSavedDocuments().stream().filter(doc -> doc.toString().equals(fullGroupName)).findFirst();
+            }
 
+            private BaseObject findUser(XWikiDocument groupDoc) {
                 BaseClass ref = xwiki.getGroupClass(context);
                 return groupDoc.getXObject(ref.getDocumentReference(), "member", userName);
             }
@@ -0,0 +1,230 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.authentication.saml.xwiki;
+
+import com.onelogin.saml2.Auth;
+import com.xpn.xwiki.XWiki;
+import com.xpn.xwiki.XWikiContext;
+import com.xpn.xwiki.XWikiException;
+import com.xpn.xwiki.doc.XWikiDocument;
+import com.xpn.xwiki.objects.BaseObject;
+import com.xpn.xwiki.objects.DBStringListProperty;
+import com.xpn.xwiki.objects.ListProperty;
+import com.xpn.xwiki.objects.StringProperty;
+import com.xwiki.authentication.saml.samlauth.Saml2XWikiAttributes;
+import com.xwiki.authentication.saml.samlauth.SamlAuthConfig;
+import com.xwiki.authentication.saml.samlauth.SamlXwikiAttributesExtractor;
+import com.xwiki.authentication.saml.testsupport.ConfigurationSourceWithProperties;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.jupiter.api.Test;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.reference.EntityReference;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.clearInvocations;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoInteractions;
+import static org.mockito.Mockito.when;
+
+public class XWikiUserGroupSynchronizerTest {
+    private static final DocumentReference ARTHUR = new DocumentReference("xwiki", "XWiki", "ArthurDent");
+    private static final String DEFAULT_GROUP = SamlAuthConfig.DEFAULT_GROUP_FOR_NEW_USERS;
+    private final SamlAuthConfig authConfig = SamlAuthConfig.from(new ConfigurationSourceWithProperties());
+    private final XWikiContext context = new XWikiContext();
+    private final XWiki xwiki = mock(XWiki.class);
+    private final XWikiGroupManager groupManager = mock(XWikiGroupManager.class);
+    private final BaseObject userObj = new BaseObject();
+    private final XWikiDocument userDoc = new XWikiDocument(ARTHUR) {
+        @Override
+        public BaseObject getXObject(EntityReference classReference) {
+            return userObj;
+        }
+    };
+
+    public XWikiUserGroupSynchronizerTest() throws XWikiException {
+        context.setWikiId("xwiki");
+        context.setWiki(xwiki);
+        when(xwiki.getDocument(eq(ARTHUR), any(XWikiContext.class))).thenReturn(userDoc);
+        when(groupManager.addUserToGroup(anyString(), anyString(), any(XWikiContext.class))).thenReturn(true);
+        when(groupManager.removeUserFromGroup(anyString(), anyString(), any(XWikiContext.class))).thenReturn(true);
+    }
+
+    @Test
+    public void whenGroupsAreUnchanged_ShouldSkipTheSynchronization() throws XWikiException {
+        final XWikiUserGroupSynchronizer synchronizer = synchronizer(new GroupSyncPolicy(0, 0, () -> 0L));
+        synchronizer.syncUserGroups(ARTHUR, attributes("Vogons"));
+        clearInvocations(xwiki, groupManager);
+
+        final GroupSyncResult result = synchronizer.syncUserGroups(ARTHUR, attributes("Vogons"));
+
+        assertTrue(result.skipped);
+        assertEquals(1, result.writesAvoided);
+        verifyNoInteractions(groupManager);
+        verify(xwiki, never()).saveDocument(any(XWikiDocument.class), any(XWikiContext.class));
+    }
+
+    @Test
+    public void whenGroupsChange_ShouldStoreTheNewFingerprint() throws XWikiException {
+        final XWikiUserGroupSynchronizer synchronizer = synchronizer(new GroupSyncPolicy(0, 0, () -> 0L));
+        synchronizer.syncUserGroups(ARTHUR, attributes("Vogons"));
+
+        final GroupSyncResult result = synchronizer.syncUserGroups(ARTHUR, attributes("Dolphins"));
+
+        assertFalse(result.skipped);
+        assertTrue(result.userSaved);
+        verify(groupManager).removeUserFromGroup("ArthurDent", "Vogons", context);
+        verify(groupManager).addUserToGroup("ArthurDent", "Dolphins", context);
+        verify(xwiki).saveDocument(userDoc, context);
+        assertEquals(Arrays.asList("Dolphins", DEFAULT_GROUP), managedGroups());
+        assertEquals(Fingerprint.of(Arrays.asList("Dolphins", DEFAULT_GROUP)), stringProperty("SamlManagedGroupsFingerprint"));
+        assertTrue(synchronizer.syncUserGroups(ARTHUR, attributes("Dolphins")).skipped);
+    }
+
+    @Test
+    public void whenSampledLoginIsDrawn_ShouldReconcileUnchangedGroups() throws XWikiException {
+        final Deque<Integer> draws = new ArrayDeque<>(Arrays.asList(3, 0));
+        final List<Integer> bounds = new ArrayList<>();
+        final XWikiUserGroupSynchronizer synchronizer = synchronizer(new GroupSyncPolicy(10, 0, () -> 0L, bound -> {
+            bounds.add(bound);
+            return draws.removeFirst();
+        }));
+        synchronizer.syncUserGroups(ARTHUR, attributes("Vogons"));
+        clearInvocations(xwiki, groupManager);
+
+        assertTrue(synchronizer.syncUserGroups(ARTHUR, attributes("Vogons")).skipped);
+        verifyNoInteractions(groupManager);
+        final GroupSyncResult reconcile = synchronizer.syncUserGroups(ARTHUR, attributes("Vogons"));
+
+        assertFalse(reconcile.skipped);
+        assertFalse(reconcile.userSaved);
+        assertEquals(1, reconcile.writesAvoided);
+        assertEquals(Arrays.asList(10, 10), bounds);
+        verify(groupManager).addUserToGroup("ArthurDent", "Vogons", context);
+        verify(groupManager).addUserToGroup("ArthurDent", DEFAULT_GROUP, context);
+        verify(xwiki, never()).saveDocument(any(XWikiDocument.class), any(XWikiContext.class));
+    }
+
+    @Test
+    public void whenReconcileIntervalElapses_ShouldReconcileUnchangedGroupsAndRecordTheTime() throws XWikiException {
+        final AtomicLong now = new AtomicLong(0);
+        final long hour = TimeUnit.HOURS.toMillis(1);
+        final XWikiUserGroupSynchronizer synchronizer = synchronizer(new GroupSyncPolicy(0, hour, now::get));
+        synchronizer.syncUserGroups(ARTHUR, attributes("Vogons"));
+        assertEquals("0", stringProperty("SamlManagedGroupsReconciledAt"));
+        clearInvocations(xwiki, groupManager);
+
+        now.set(hour - 1);
+        assertTrue(synchronizer.syncUserGroups(ARTHUR, attributes("Vogons")).skipped);
+        verifyNoInteractions(groupManager);
+        now.set(hour);
+        final GroupSyncResult reconcile = synchronizer.syncUserGroups(ARTHUR, attributes("Vogons"));
+
+        assertFalse(reconcile.skipped);
+        assertTrue(reconcile.userSaved);
+        verify(groupManager).addUserToGroup("ArthurDent", "Vogons", context);
+        verify(xwiki).saveDocument(userDoc, context);
+        assertEquals(String.valueOf(hour), stringProperty("SamlManagedGroupsReconciledAt"));
+    }
+
+    @Test
+    public void whenGroupNameContainsCommas_ShouldKeepItWholeFromTheAttributeToTheGroupRemoval() throws XWikiException {
+        final XWikiUserGroupSynchronizer synchronizer = synchronizer(new GroupSyncPolicy(0, 0, () -> 0L));
+
+        synchronizer.syncUserGroups(ARTHUR, attributes("Sales, EMEA", "Vogons"));
+        assertEquals(Arrays.asList("Sales, EMEA", "Vogons", DEFAULT_GROUP), managedGroups());
+        synchronizer.syncUserGroups(ARTHUR, attributes("Vogons"));
+
+        verify(groupManager).addUserToGroup("ArthurDent", "Sales, EMEA", context);
+        verify(groupManager).removeUserFromGroup("ArthurDent", "Sales, EMEA", context);
+        verify(groupManager, never()).removeUserFromGroup(eq("ArthurDent"), eq("Sales"), any(XWikiContext.class));
+        assertEquals(Arrays.asList("Vogons", DEFAULT_GROUP), managedGroups());
+    }
+
+    @Test
+    public void whenManagedGroupsWereStoredAsCommaString_ShouldReadThemAndStoreThemAsList() throws XWikiException {
+        final StringProperty legacyGroups = new StringProperty();
+        legacyGroups.setName("SamlManagedGroups");
+        legacyGroups.setValue("Vogons,,Dolphins");
+        userObj.put("SamlManagedGroups", legacyGroups);
+
+        synchronizer(new GroupSyncPolicy(0, 0, () -> 0L)).syncUserGroups(ARTHUR, attributes("Dolphins"));
+
+        verify(groupManager).removeUserFromGroup("ArthurDent", "Vogons", context);
+        verify(groupManager, never()).removeUserFromGroup(eq("ArthurDent"), eq(""), any(XWikiContext.class));
+        assertTrue(userObj.get("SamlManagedGroups") instanceof DBStringListProperty);
+        assertEquals(Arrays.asList("Dolphins", DEFAULT_GROUP), managedGroups());
+    }
+
+    @Test
+    public void whenGroupAttributeIsConfigured_ShouldReadItsValuesAsDeduplicatedSet() {
+        final Properties properties = new Properties();
+        properties.put("xwiki.authentication.saml2.groups_attribute", "memberOf");
+        final ConfigurationSourceWithProperties cfg = new ConfigurationSourceWithProperties();
+        cfg.setFromProperties(properties);
+        final Map<String, List<String>> samlAttributes = new LinkedHashMap<>();
+        samlAttributes.put("memberOf", Arrays.asList("Vogons", " ", "Sales, EMEA", "Vogons"));
+        samlAttributes.put(authConfig.groupsAttributeName, Arrays.asList("Dolphins"));
+        final Auth auth = mock(Auth.class);
+        when(auth.getAttributes()).thenReturn(samlAttributes);
+
+        final Saml2XWikiAttributes attributes =
+                new SamlXwikiAttributesExtractor(SamlAuthConfig.from(cfg)).extractXWikiAttributesFromSaml(auth);
+
+        assertEquals(Arrays.asList("Vogons", "Sales, EMEA", DEFAULT_GROUP), new ArrayList<>(attributes.groupsFromSaml));
+    }
+
+    private XWikiUserGroupSynchronizer synchronizer(GroupSyncPolicy syncPolicy) {
+        return new XWikiUserGroupSynchronizer(groupManager, context, syncPolicy);
+    }
+
+    private Saml2XWikiAttributes attributes(String... groups) {
+        final Map<String, List<String>> samlAttributes = new LinkedHashMap<>();
+        samlAttributes.put(authConfig.groupsAttributeName, Arrays.asList(groups));
+        final Auth auth = mock(Auth.class);
+        when(auth.getNameId()).thenReturn("arthur.dent@dontpanic.com");
+        when(auth.getAttributes()).thenReturn(samlAttributes);
+        return new SamlXwikiAttributesExtractor(authConfig).extractXWikiAttributesFromSaml(auth);
+    }
+
+    @SuppressWarnings("unchecked")
+    private List<String> managedGroups() {
+        return ((ListProperty) userObj.get("SamlManagedGroups")).getList();
+    }
+
+    private String stringProperty(String propertyName) {
+        return ((StringProperty) userObj.get(propertyName)).getValue();
+    }
+}
@@ -0,0 +1,271 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ */
+package com.xwiki.authentication.saml.xwiki;
+
+import com.onelogin.saml2.Auth;
+import com.xpn.xwiki.XWikiContext;
+import com.xpn.xwiki.XWikiException;
+import com.xpn.xwiki.doc.XWikiDocument;
+import com.xpn.xwiki.objects.BaseObject;
+import com.xpn.xwiki.store.XWikiStoreInterface;
+import com.xpn.xwiki.web.Utils;
+import com.xwiki.authentication.saml.metrics.LatencyHistogram;
+import com.xwiki.authentication.saml.metrics.LoginMetrics;
+import com.xwiki.authentication.saml.samlauth.Saml2XWikiAttributes;
+import com.xwiki.authentication.saml.samlauth.SamlAuthConfig;
+import com.xwiki.authentication.saml.samlauth.SamlXwikiAttributesExtractor;
+import com.xwiki.authentication.saml.testsupport.ConfigurationSourceWithProperties;
+import com.xwiki.authentication.saml.testsupport.XWikiMock;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.xwiki.component.manager.ComponentLookupException;
+import org.xwiki.component.manager.ComponentManager;
+import org.xwiki.model.EntityType;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.model.reference.DocumentReferenceResolver;
+import org.xwiki.model.reference.EntityReference;
+import org.xwiki.model.reference.EntityReferenceSerializer;
+import org.xwiki.rendering.syntax.Syntax;
+
+import static java.util.Collections.singletonList;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class XWikiUserManagerTest {
+    private static final String WIKI = "xwiki";
+    private static final String NAME_ID = "arthur.dent@dontpanic.com";
+    private static final DocumentReference ARTHUR = new DocumentReference(WIKI, "XWiki", "ArthurDent");
+    private final ExecutorService logins = Executors.newFixedThreadPool(2);
+    private final StoredUsersXWiki xwiki = new StoredUsersXWiki(newContext(null));
+    private final XWikiStoreInterface store = mock(XWikiStoreInterface.class);
+    private final DocumentReferenceResolver<String> resolver =
+            (name, parameters) -> new DocumentReference(WIKI, "XWiki", name.substring(name.lastIndexOf('.') + 1));
+    private final EntityReferenceSerializer<String> serializer = (reference, parameters) -> referenceName(reference);
+    private final SamlAuthConfig authConfig = SamlAuthConfig.from(new ConfigurationSourceWithProperties());
+
+    public XWikiUserManagerTest() throws XWikiException, ComponentLookupException {
+        setupComponentManager();
+        xwiki.setStore(store);
+        when(store.exists(any(), any())).thenAnswer(invocation ->
+                xwiki.isStored(((XWikiDocument) invocation.getArgument(0)).getDocumentReference()));
+        when(store.search(anyString(), anyInt(), anyInt(), any(List.class), any())).thenAnswer(invocation ->
+                ((List<?>) invocation.getArgument(3)).contains(NAME_ID) ? xwiki.storedUserNames() : new ArrayList<>());
+    }
+
+    @AfterEach
+    public void tearDown() {
+        logins.shutdownNow();
+    }
+
+    @Test
+    public void whenSameNewUserLogsInTwiceConcurrentlyWithoutCache_ShouldCreateOneAccount() throws Exception {
+        final XWikiUserManager userManager = new XWikiUserManager(authConfig, serializer, resolver,
+                new UserReferenceCache(0, 0), new LoginMetrics(new LatencyHistogram()));
+        final Saml2XWikiAttributes attributes = attributesFor(NAME_ID, "Arthur", "Dent");
+        // both logins flush their unit of work only once both have their user, like a slow group synchronization
+        final CyclicBarrier bothUsersResolved = new CyclicBarrier(2);
+
+        final List<Future<DocumentReference>> results = new ArrayList<>();
+        for (int i = 0; i < 2; i++)
+            results.add(logins.submit(() -> {
+                final LoginUnitOfWork unitOfWork = new LoginUnitOfWork(newContext(xwiki));
+                final DocumentReference user = userManager.getOrCreateUserIfNeeded(unitOfWork, attributes);
+                bothUsersResolved.await(10, TimeUnit.SECONDS);
+                unitOfWork.flush();
+                return user;
+            }));
+
+        assertEquals(ARTHUR, results.get(0).get(10, TimeUnit.SECONDS));
+        assertEquals(ARTHUR, results.get(1).get(10, TimeUnit.SECONDS));
+        assertEquals(1, xwiki.createdUsers.get());
+    }
+
+    @Test
+    public void whenReturningUserHasTheSameAttributes_ShouldNotWriteTheUser() throws XWikiException {
+        final XWikiUserManager userManager = userManager(new GroupSyncPolicy(0, 0, () -> 0L));
+        login(userManager, attributesFor(NAME_ID, "Arthur", "Dent"));
+
+        final LoginUnitOfWork secondLogin = login(userManager, attributesFor(NAME_ID, "Arthur", "Dent"));
+
+        assertEquals(0, secondLogin.getWrites());
+    }
+
+    @Test
+    public void whenMappedFieldWasEditedInXWiki_ShouldRestoreItOnTheNextReconcile() throws XWikiException {
+        final AtomicLong now = new AtomicLong();
+        final XWikiUserManager userManager = userManager(new GroupSyncPolicy(0, TimeUnit.HOURS.toMillis(1), now::get));
+        login(userManager, attributesFor(NAME_ID, "Arthur", "Dent"));
+        final BaseObject arthur = xwiki.getDocument(ARTHUR, null).getXObject(XWikiUserManager.USER_XCLASS);
+        arthur.setStringValue("first_name", "Ford");
+
+        now.set(TimeUnit.MINUTES.toMillis(30));
+        final LoginUnitOfWork loginBeforeReconcile = login(userManager, attributesFor(NAME_ID, "Arthur", "Dent"));
+        assertEquals(0, loginBeforeReconcile.getWrites());
+        assertEquals("Ford", arthur.getStringValue("first_name"));
+
+        now.set(TimeUnit.MINUTES.toMillis(90));
+        final LoginUnitOfWork reconcileLogin = login(userManager, attributesFor(NAME_ID, "Arthur", "Dent"));
+        assertEquals(1, reconcileLogin.getWrites());
+        assertEquals("Arthur", arthur.getStringValue("first_name"));
+    }
+
+    @Test
+    public void whenIdpSendsNewAttributes_ShouldUpdateTheFieldsRightAway() throws XWikiException {
+        final XWikiUserManager userManager = userManager(new GroupSyncPolicy(0, 0, () -> 0L));
+        login(userManager, attributesFor(NAME_ID, "Arthur", "Dent"));
+
+        final LoginUnitOfWork secondLogin = login(userManager, attributesFor(NAME_ID, "Arthur", "Philip Dent"));
+
+        assertEquals(1, secondLogin.getWrites());
+        assertEquals("Philip Dent",
+                xwiki.getDocument(ARTHUR, null).getXObject(XWikiUserManager.USER_XCLASS).getStringValue("last_name"));
+    }
+
+    private XWikiUserManager userManager(GroupSyncPolicy syncPolicy) {
+        return new XWikiUserManager(authConfig, serializer, resolver, new UserReferenceCache(0, 0),
+                new LoginMetrics(new LatencyHistogram()), syncPolicy);
+    }
+
+    private LoginUnitOfWork login(XWikiUserManager userManager, Saml2XWikiAttributes attributes) throws XWikiException {
+        final LoginUnitOfWork unitOfWork = new LoginUnitOfWork(newContext(xwiki));
+        userManager.getOrCreateUserIfNeeded(unitOfWork, attributes);
+        unitOfWork.flush();
+        return unitOfWork;
+    }
+
+    private Saml2XWikiAttributes attributesFor(String nameId, String firstName, String lastName) {
+        final Map<String, List<String>> samlAttributes = new LinkedHashMap<>();
+        samlAttributes.put("firstName", singletonList(firstName));
+        samlAttributes.put("lastName", singletonList(lastName));
+        samlAttributes.put("email", singletonList(nameId));
+        final Auth auth = mock(Auth.class);
+        when(auth.getNameId()).thenReturn(nameId);
+        when(auth.getAttributes()).thenReturn(samlAttributes);
+        return new SamlXwikiAttributesExtractor(authConfig).extractXWikiAttributesFromSaml(auth);
+    }
+
+    private static XWikiContext newContext(XWikiMock xwiki) {
+        final XWikiContext context = new XWikiContext();
+        context.setWiki(xwiki);
+        context.setWikiId(WIKI);
+        context.setMainXWiki(WIKI);
+        return context;
+    }
+
+    private static String referenceName(EntityReference reference) {
+        final EntityReference space = reference.extractReference(EntityType.SPACE);
+        return space == null ? reference.getName() : space.getName() + "." + reference.getName();
+    }
+
+    private static void setupComponentManager() throws ComponentLookupException {
+        final ComponentManager globalCm = mock(ComponentManager.class);
+        final ComponentManager contextCm = mock(ComponentManager.class);
+        @SuppressWarnings("rawtypes")
+        final EntityReferenceSerializer local = (reference, parameters) -> reference + "";
+        Utils.setComponentManager(globalCm);
+        when(globalCm.getInstance(ComponentManager.class, "context")).thenReturn(contextCm);
+        when(contextCm.getInstance(EntityReferenceSerializer.TYPE_STRING, "local")).thenReturn(local);
+    }
+
+    // a user is only found by its NameID once its document holding the SAML object has been saved
+    private static class StoredUsersXWiki extends XWikiMock {
+        final AtomicInteger createdUsers = new AtomicInteger();
+        private final Set<DocumentReference> storedUsers = ConcurrentHashMap.newKeySet();
+        private final Map<DocumentReference, XWikiDocument> documents = new ConcurrentHashMap<>();
+
+        StoredUsersXWiki(XWikiContext context) {
+            super(context);
+        }
+
+        @Override
+        public int createUser(String userName, Map<String, ?> map, EntityReference parentReference, String content,
+                              Syntax syntax, String userRights, XWikiContext context) {
+            createdUsers.incrementAndGet();
+            final BaseObject user = getDocument(new DocumentReference(WIKI, "XWiki", userName), context)
+                    .newXObject(XWikiUserManager.USER_XCLASS, context);
+            map.forEach((field, value) -> user.setStringValue(field, String.valueOf(value)));
+            return super.createUser(userName, map, parentReference, content, syntax, userRights, context);
+        }
+
+        @Override
+        public XWikiDocument getDocument(DocumentReference reference, XWikiContext context) {
+            return documents.computeIfAbsent(reference, UserDocument::new);
+        }
+
+        @Override
+        public void saveDocument(XWikiDocument doc, XWikiContext context) {
+            super.saveDocument(doc, context);
+            doc.setNew(false);
+            storedUsers.add(doc.getDocumentReference());
+        }
+
+        boolean isStored(DocumentReference reference) {
+            return storedUsers.contains(reference);
+        }
+
+        List<String> storedUserNames() {
+            final List<String> users = new ArrayList<>();
+            for (DocumentReference user : storedUsers)
+                users.add("XWiki." + user.getName());
+            return users;
+        }
+    }
+
+    // holds one object per class, with the properties stored as strings
+    private static class UserDocument extends XWikiDocument {
+        private final Map<EntityReference, BaseObject> objects = new ConcurrentHashMap<>();
+
+        UserDocument(DocumentReference reference) {
+            super(reference);
+        }
+
+        @Override
+        public BaseObject getXObject(EntityReference classReference) {
+            return objects.get(classReference);
+        }
+
+        @Override
+        public BaseObject newXObject(EntityReference classReference, XWikiContext context) {
+            return objects.computeIfAbsent(classReference, reference -> new BaseObject() {
+                @Override
+                public void set(String fieldName, Object value, XWikiContext context) {
+                    setStringValue(fieldName, String.valueOf(value));
+                }
+            });
+        }
+    }
+}